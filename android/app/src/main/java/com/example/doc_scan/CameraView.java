@@ -44,6 +44,10 @@ import java.util.List;
 
 public class CameraView extends Activity implements CvCameraViewListener2, OnImageEventListener, ContourFunnelListener {
     private static final String TAG = "DocScanner::Activity";
+    // The name of the CroppedReceipt.Binarization to use for the scans, Otsu if it's missing
+    static final String EXTRA_BINARIZATION = "binarization";
+    // True to stitch several captures of a long receipt
+    static final String EXTRA_MULTI_CAPTURE = "multiCapture";
     private CustomCameraView mOpenCvCameraView;
 
     private TextView cameraHintLIGHTextView;
@@ -61,11 +65,20 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
     Quad bestContourToBeDisplayed;
     FunnelResultAction contourFunnelAction;
 
+    // The native contour used to draw the displayed quad. It is only rewritten when a different
+    // quad is displayed.
+    MatOfPoint drawableContour;
+    final int[] drawablePolygon = new int[8];
+    List<MatOfPoint> drawableContourList;
+    Quad drawnQuad;
+
     int noRectangleCount = 0;
     int noRectangleCountThreshold = 3;
     int frameCount = 0;
     Boolean shouldAutoShutter = true;
     Boolean takingPicture = false;
+    CroppedReceipt.Binarization binarization;
+    boolean multiCapture;
 
     final Scalar normalContourColor = new Scalar(108, 170, 236);
     final Scalar autoScanContourColor = new Scalar(46, 204, 113);
@@ -97,6 +110,9 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
 
         setContentView(R.layout.activity_camera_view);
 
+        binarization = CroppedReceipt.Binarization.fromName(getIntent().getStringExtra(EXTRA_BINARIZATION));
+        multiCapture = getIntent().getBooleanExtra(EXTRA_MULTI_CAPTURE, false);
+
         mOpenCvCameraView = findViewById(R.id.show_camera_activity_java_surface_view);
         mOpenCvCameraView.setVisibility(SurfaceView.VISIBLE);
         mOpenCvCameraView.setCvCameraViewListener(this);
@@ -148,10 +164,17 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
         if (!takingPicture) {
             takingPicture = true;
             playShutterSound();
-            mOpenCvCameraView.takePicture();
+            mOpenCvCameraView.takePicture(receiptWidth(bestContourToBeDisplayed));
         }
     }
 
+    // The width of the receipt in preview pixels: the shorter side of its crop, 0 without a quad
+    private static double receiptWidth(Quad quad) {
+        if (quad == null) return 0;
+        Size size = CroppedReceipt.cropSize(quad);
+        return Math.min(size.width, size.height);
+    }
+
     private void playShutterSound() {
         AudioManager audio = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         switch( audio.getRingerMode() ){
@@ -168,18 +191,30 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
         camHeight = height; // 1080
         camWidth = width;   // 1440
 
-        mRgba = new Mat(height, width, CvType.CV_8UC4);
-        mGray = new Mat(height, width, CvType.CV_8UC4);
-        mBilateral = new Mat(height, width, CvType.CV_8UC3);
-        mCanny = new Mat(height, width, CvType.CV_8UC4);
-        mDilated = new Mat(height, width, CvType.CV_8UC4);
-        kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(9.0, 9.0));
+        // mRgba is the camera's frame buffer, it's set per frame
+        mGray = MatTracker.track(new Mat(height, width, CvType.CV_8UC4));
+        mBilateral = MatTracker.track(new Mat(height, width, CvType.CV_8UC3));
+        mCanny = MatTracker.track(new Mat(height, width, CvType.CV_8UC4));
+        mDilated = MatTracker.track(new Mat(height, width, CvType.CV_8UC4));
+        kernel = MatTracker.track(Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(9.0, 9.0)));
         contourFunnel = new ContourFunnel();
         contourFunnel.registerContourFunnelListener(this);
+
+        drawableContour = MatTracker.track(new MatOfPoint());
+        drawableContourList = new ArrayList<>();
+        drawableContourList.add(drawableContour);
+        drawnQuad = null;
     }
 
+    // Releases the buffers allocated in onCameraViewStarted. The frame buffer belongs to the
+    // camera.
     public void onCameraViewStopped() {
-        mRgba.release();
+        mGray.release();
+        mBilateral.release();
+        mCanny.release();
+        mDilated.release();
+        kernel.release();
+        drawableContour.release();
     }
 
 
@@ -192,10 +227,9 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
             frameCount = 0;
         }
 
-        List<MatOfPoint> foundContour = this.findBestContour(mRgba);
+        Quad contourQuad = this.findBestContour(mRgba);
 
-        if (foundContour != null) {
-            Quad contourQuad = new Quad(foundContour);
+        if (contourQuad != null) {
             noRectangleCount = 0;
             contourFunnel.add(contourQuad, bestContourToBeDisplayed);
         } else {
@@ -209,7 +243,11 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
         if (bestContourToBeDisplayed != null) {
             Scalar contourColor = contourFunnelAction == FunnelResultAction.SHOW ? normalContourColor : autoScanContourColor;
             if (!shouldAutoShutter) contourColor = normalContourColor;
-            Imgproc.drawContours(mRgba, bestContourToBeDisplayed.contourList, 0, contourColor, 6);
+            if (drawnQuad != bestContourToBeDisplayed) {
+                bestContourToBeDisplayed.writeTo(drawableContour, drawablePolygon);
+                drawnQuad = bestContourToBeDisplayed;
+            }
+            Imgproc.drawContours(mRgba, drawableContourList, 0, contourColor, 6);
 
             if (contourFunnelAction == FunnelResultAction.SHOW_AND_AUTO_SCAN && shouldAutoShutter) {
                 this.takeScanPicture();
@@ -225,14 +263,21 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
         contourFunnelAction = action;
     }
 
-    List<MatOfPoint> findBestContour(Mat mRgbaImg) {
+    // Every Mat allocated for the frame is released when the arena closes
+    Quad findBestContour(Mat mRgbaImg) {
+        try (MatArena arena = new MatArena()) {
+            return findBestContour(mRgbaImg, arena);
+        }
+    }
+
+    private Quad findBestContour(Mat mRgbaImg, MatArena arena) {
         Imgproc.cvtColor(mRgbaImg, mGray, Imgproc.COLOR_RGBA2GRAY);
         Imgproc.GaussianBlur(mGray, mGray, new Size(3.0, 3.0), 0.0);
         Imgproc.dilate(mGray, mDilated, kernel);
         Imgproc.Canny(mDilated, mCanny, 25, 200, 3, true);
 //        Imgproc.dilate(mCanny, mCanny, kernel);
 
-        Mat lines = new Mat();
+        Mat lines = arena.add(new Mat());
         Imgproc.HoughLinesP(mCanny, lines, 1, 3.14/180, 25, 150, 10);//, 10, 250);
         for (int i = 0; i < lines.rows(); i++) {
             double[] line = lines.get(i, 0);
@@ -242,17 +287,18 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
         }
 
         List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
+        Mat hierarchy = arena.add(new Mat());
         Imgproc.findContours(mCanny, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_TC89_KCOS);
+        arena.addAll(contours);
 
         Collections.sort(contours, (p1, p2) -> Double.compare(Imgproc.contourArea(p2), Imgproc.contourArea(p1)));
 
         // Select the best contour and return it
         MatOfPoint2f bestContour = null;
         for (MatOfPoint contour : contours) {
-            MatOfPoint2f contour2f = new MatOfPoint2f( contour.toArray() );
+            MatOfPoint2f contour2f = arena.add(new MatOfPoint2f( contour.toArray() ));
 //            double peri = Imgproc.arcLength(contour2f, true);
-            MatOfPoint2f approx = new MatOfPoint2f();
+            MatOfPoint2f approx = arena.add(new MatOfPoint2f());
 
 //            0.1 * peri
             Imgproc.approxPolyDP(contour2f, approx, 20, true);
@@ -263,14 +309,14 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
             }
         }
 
-        // Create a drawable contour
+        // Copy the corners to a quad, no native contour has to be kept for it
         if (bestContour != null ) {
-            MatOfPoint approxf1 = new MatOfPoint();
-            bestContour.convertTo(approxf1, CvType.CV_32S);
-            List<MatOfPoint> contourTemp = new ArrayList<>();
-            contourTemp.add(approxf1);
+            float[] corners = new float[8];
+            bestContour.get(0, 0, corners);
 
-            return contourTemp;
+            double[] cornerPoints = new double[8];
+            for (int i = 0; i < 8; i++) cornerPoints[i] = corners[i];
+            return new Quad(cornerPoints);
         } else {
             return null;
         }
@@ -304,15 +350,16 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
     }
 
     @Override
-    public void imageTaken(Mat image) {
+    public void imageTaken(byte[] jpegData, int rotation) {
         takingPicture = false;
-        CropActivity.contour = this.bestContourToBeDisplayed;
-        CropActivity.image = image;
 
-        // Width = Height & Height = Width as the image in given rotated by OpenCV. Here we do the
-        // rotation task.
-        CropActivity.openCVCamWidth = this.camHeight;
-        CropActivity.openCVCamHeight = this.camWidth;
+        // The preview frame is in sensor orientation like the picture, a quarter turn swaps its
+        // width and height. Starting the session ends the previous one, sections stitched in
+        // multi-capture mode carry over.
+        boolean quarterTurn = rotation % 180 != 0;
+        ScanSession.start(jpegData, rotation, this.bestContourToBeDisplayed,
+                quarterTurn ? this.camHeight : this.camWidth, quarterTurn ? this.camWidth : this.camHeight,
+                binarization, multiCapture);
 
         // Start an intent to the CropActivity
         Intent intent = new Intent(getBaseContext(), CropActivity.class);
@@ -324,6 +371,8 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
 
 
     private void returnToFlutterWithoutResult() {
+        ScanSession.end();
+
         Intent intent = new Intent("text-processing-finished");
         intent.putExtra("message", "scanCancelled");
         LocalBroadcastManager.getInstance(CameraView.this).sendBroadcast(intent);
@@ -349,17 +398,21 @@ public class CameraView extends Activity implements CvCameraViewListener2, OnIma
             // Make sure only 1 mat is provided
             if (mats.length > 1) return null;
             Mat mainMat = mats[0];
-            Mat grayFrame = new Mat(mainMat.size(), CvType.CV_8UC4);
+            double meanValue;
+            double stdValue;
+            try (MatArena arena = new MatArena()) {
+                Mat grayFrame = arena.add(new Mat(mainMat.size(), CvType.CV_8UC4));
 
-            Imgproc.cvtColor(mainMat, grayFrame, Imgproc.COLOR_RGBA2GRAY);
-            Imgproc.GaussianBlur(grayFrame, grayFrame, new Size(5,5), 0.0);
+                Imgproc.cvtColor(mainMat, grayFrame, Imgproc.COLOR_RGBA2GRAY);
+                Imgproc.GaussianBlur(grayFrame, grayFrame, new Size(5,5), 0.0);
 
-            MatOfDouble mean = new MatOfDouble();
-            MatOfDouble std = new MatOfDouble();
-            Core.meanStdDev(grayFrame, mean, std);
+                MatOfDouble mean = arena.add(new MatOfDouble());
+                MatOfDouble std = arena.add(new MatOfDouble());
+                Core.meanStdDev(grayFrame, mean, std);
 
-            double meanValue = mean.get(0,0)[0];
-            double stdValue = std.get(0,0)[0];
+                meanValue = mean.get(0,0)[0];
+                stdValue = std.get(0,0)[0];
+            }
 
             // True if too dark
             Dictionary results = new Hashtable<String, Boolean>();
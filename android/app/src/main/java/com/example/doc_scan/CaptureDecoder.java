@@ -0,0 +1,172 @@
+package com.example.doc_scan;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+
+import com.example.doc_scan.geometry.Transform;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+
+// Decodes the JPEG bytes delivered by the camera, only at the resolution and for the region
+// a step needs. The camera image is in sensor orientation, the whole image decodes return it
+// rotated upright by the camera's sensor orientation, the angle the saved original's EXIF is
+// rotated by too. Regions are decoded in sensor orientation, the rotation is folded into the
+// transform that consumes them, see sensorToRotated().
+class CaptureDecoder {
+    private final byte[] jpegData;
+    // Clockwise, 0, 90, 180 or 270 degrees
+    private final int rotation;
+    // Size of the JPEG as stored, in sensor orientation
+    private final int sensorWidth;
+    private final int sensorHeight;
+
+    private BitmapRegionDecoder regionDecoder;
+    private boolean released = false;
+
+    // 'rotation' is the clockwise rotation in degrees that turns the capture upright, a
+    // multiple of 90
+    CaptureDecoder(byte[] jpegData, int rotation) {
+        if (rotation % 90 != 0) throw new IllegalArgumentException("Not a multiple of 90 degrees: " + rotation);
+        this.jpegData = jpegData;
+        this.rotation = (rotation % 360 + 360) % 360;
+
+        // Only reads the JPEG header
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+        this.sensorWidth = options.outWidth;
+        this.sensorHeight = options.outHeight;
+    }
+
+    // The size of the rotated capture
+    Size rotatedSize() {
+        return isQuarterTurn() ? new Size(sensorHeight, sensorWidth) : new Size(sensorWidth, sensorHeight);
+    }
+
+    // Maps sensor pixel coordinates to the rotated capture. For 90 degrees rotated (x, y) is
+    // sensor (y, sensorHeight - 1 - x), the same as a transpose followed by a horizontal flip.
+    // The translation moves the rotated pixel centers back to 0 .. size - 1.
+    Transform sensorToRotated() {
+        Transform turn = Transform.rotation(rotation, new Point(0, 0));
+        switch (rotation) {
+            case 90:
+                return turn.then(Transform.translation(sensorHeight - 1, 0));
+            case 180:
+                return turn.then(Transform.translation(sensorWidth - 1, sensorHeight - 1));
+            case 270:
+                return turn.then(Transform.translation(0, sensorWidth - 1));
+            default:
+                return turn;
+        }
+    }
+
+    // Decodes a rotated RGBA image just large enough to cover the target size. The JPEG decoder
+    // downscales by 1/2, 1/4 or 1/8 while decoding and skips the detail it doesn't need, which
+    // is much faster than decoding everything and resizing.
+    Mat decodeReduced(int targetWidth, int targetHeight) {
+        Size imageSize = rotatedSize();
+        int[] factors = { 8, 4, 2 };
+        int[] flags = { Imgcodecs.IMREAD_REDUCED_COLOR_8, Imgcodecs.IMREAD_REDUCED_COLOR_4, Imgcodecs.IMREAD_REDUCED_COLOR_2 };
+
+        for (int i = 0; i < factors.length; i++) {
+            if (imageSize.width / factors[i] >= targetWidth && imageSize.height / factors[i] >= targetHeight) {
+                return decodeRotated(flags[i]);
+            }
+        }
+        return decodeRotated(Imgcodecs.IMREAD_COLOR);
+    }
+
+    private Mat decodeRotated(int flag) {
+        MatOfByte buffer = new MatOfByte(jpegData);
+        Mat decoded = Imgcodecs.imdecode(buffer, flag);
+        buffer.release();
+
+        Mat rotated = rotate(decoded, rotation);
+        if (rotated != decoded) decoded.release();
+
+        Imgproc.cvtColor(rotated, rotated, Imgproc.COLOR_BGR2RGBA);
+        return rotated;
+    }
+
+    // Decodes only 'sensorRegion' of the capture at full resolution, in sensor orientation, as
+    // a single channel gray Mat. The rest of the JPEG is skipped.
+    Mat decodeGrayRegion(Rect sensorRegion) throws IOException {
+        android.graphics.Rect region = new android.graphics.Rect(sensorRegion.x, sensorRegion.y,
+                sensorRegion.x + sensorRegion.width, sensorRegion.y + sensorRegion.height);
+
+        // RGB_565 halves the size of the intermediate bitmap, the result is gray anyway
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = getRegionDecoder().decodeRegion(region, options);
+
+        Mat rgba = new Mat();
+        Utils.bitmapToMat(bitmap, rgba);
+        bitmap.recycle();
+
+        Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+        return gray;
+    }
+
+    // Clips 'sensorRegion' to the capture
+    Rect clip(Rect sensorRegion) {
+        int left = Math.max(0, sensorRegion.x);
+        int top = Math.max(0, sensorRegion.y);
+        int right = Math.min(sensorWidth, sensorRegion.x + sensorRegion.width);
+        int bottom = Math.min(sensorHeight, sensorRegion.y + sensorRegion.height);
+        return new Rect(left, top, Math.max(0, right - left), Math.max(0, bottom - top));
+    }
+
+    private synchronized BitmapRegionDecoder getRegionDecoder() throws IOException {
+        if (released) throw new IOException("The capture decoder has been released");
+        if (regionDecoder == null) {
+            regionDecoder = BitmapRegionDecoder.newInstance(jpegData, 0, jpegData.length, false);
+        }
+        return regionDecoder;
+    }
+
+    // Frees the region decoder. A region decode running on another thread fails.
+    synchronized void release() {
+        released = true;
+        if (regionDecoder != null) regionDecoder.recycle();
+        regionDecoder = null;
+    }
+
+    private boolean isQuarterTurn() {
+        return rotation == 90 || rotation == 270;
+    }
+
+    // Rotates clockwise by 'degrees', the way sensorToRotated() maps the coordinates. Returns
+    // 'image' itself for 0 degrees.
+    private static Mat rotate(Mat image, int degrees) {
+        if (degrees == 0) return image;
+
+        Mat rotated = new Mat();
+        switch (degrees) {
+            case 90:
+                Core.transpose(image, rotated);
+                Core.flip(rotated, rotated, 1);
+                break;
+            case 180:
+                Core.flip(image, rotated, -1);
+                break;
+            default:
+                Core.transpose(image, rotated);
+                Core.flip(rotated, rotated, 0);
+                break;
+        }
+        return rotated;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.doc_scan;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the heavy OpenCV steps of a capture (decoding, cropping, thresholding, encoding) off the
+// main thread. Activities submit a step, show progress and get the result back on the main
+// thread. Every step can be cancelled, e.g. when its activity is destroyed or its input changed.
+class CaptureProcessor {
+    private static final String TAG = "DocScanner::Processor";
+    private static final int THREADS = 2;
+
+    // Called on the main thread with the result of a step, or null if the step failed
+    interface Callback<T> {
+        void onResult(T result);
+    }
+
+    // Frees a result that will not be delivered, e.g. releases its Mats
+    interface Disposer<T> {
+        void dispose(T result);
+    }
+
+    private static CaptureProcessor instance;
+    // The job each worker thread is running, for throwIfCancelled()
+    private static final ThreadLocal<Job<?>> runningJob = new ThreadLocal<>();
+
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private CaptureProcessor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "CaptureProcessor-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static synchronized CaptureProcessor get() {
+        if (instance == null) instance = new CaptureProcessor();
+        return instance;
+    }
+
+    // Called by a long step between its stages. Throws a CancellationException if the job it
+    // runs in was cancelled, so the remaining stages are skipped. Does nothing outside a job.
+    static void throwIfCancelled() {
+        Job<?> job = runningJob.get();
+        if (job != null && job.cancelled) throw new CancellationException();
+    }
+
+    <T> Job<T> submit(Callable<T> step, Callback<T> callback) {
+        return submit(step, callback, null);
+    }
+
+    // Runs 'step' in the background and passes its result to 'callback' on the main thread. If
+    // the job is cancelled before that, the callback is not called and the result, if there is
+    // one, goes to 'disposer' instead.
+    <T> Job<T> submit(Callable<T> step, Callback<T> callback, Disposer<T> disposer) {
+        Job<T> job = new Job<>(step, callback, disposer);
+        job.future = executor.submit(job::run);
+        return job;
+    }
+
+    // A submitted step. cancel() and the delivery of the result both happen on the main thread,
+    // so after cancel() returns the callback is never called.
+    class Job<T> {
+        private final Callable<T> step;
+        private final Callback<T> callback;
+        private final Disposer<T> disposer;
+
+        private Future<?> future;
+        private volatile boolean cancelled = false;
+        private volatile boolean finished = false;
+
+        private Job(Callable<T> step, Callback<T> callback, Disposer<T> disposer) {
+            this.step = step;
+            this.callback = callback;
+            this.disposer = disposer;
+        }
+
+        private void run() {
+            if (cancelled) {
+                finished = true;
+                return;
+            }
+
+            T result = null;
+            runningJob.set(this);
+            try {
+                result = step.call();
+            } catch (CancellationException e) {
+                Log.d(TAG, "Capture processing step stopped, it was cancelled");
+            } catch (Exception e) {
+                Log.e(TAG, "Capture processing step failed", e);
+            } finally {
+                runningJob.remove();
+            }
+            finished = true;
+
+            final T finalResult = result;
+            mainHandler.post(() -> deliver(finalResult));
+        }
+
+        private void deliver(T result) {
+            if (cancelled) {
+                if (result != null && disposer != null) disposer.dispose(result);
+                return;
+            }
+            callback.onResult(result);
+        }
+
+        // Must be called on the main thread. A step that already started runs until it checks
+        // throwIfCancelled(), OpenCV calls can not be interrupted, and its result is disposed.
+        void cancel() {
+            cancelled = true;
+            // A step that had not started yet never will
+            if (future != null && future.cancel(false)) finished = true;
+        }
+
+        // True once the step is no longer running and will not run anymore, so the inputs it
+        // reads may be released
+        boolean isFinished() {
+            return finished;
+        }
+    }
+}
@@ -1,15 +1,11 @@
 package com.example.doc_scan;
 
+import com.example.doc_scan.geometry.Geometry;
+import com.example.doc_scan.model.Corner;
 import com.example.doc_scan.model.Quad;
 
-import org.opencv.core.Point;
-
 import java.util.ArrayList;
 
-interface ContourFunnelListener {
-    void currentContourIs(Quad contour, FunnelResultAction action);
-}
-
 class ContourFunnel {
     // Save a contour with it's quad and matching score.
     public class ContourMatch {
@@ -26,6 +22,8 @@ class ContourFunnel {
         }
     }
 
+    private static final Corner[] CORNERS = Corner.values();
+
     // The 'funnel' to which all contours are added to
     private ArrayList<ContourMatch> contours = new ArrayList<>();
 
@@ -54,6 +52,18 @@ class ContourFunnel {
     // The number of times the contours has passed the autoScanMatchingThreshold to be auto-scanned
     int currentAutoScanPassCount = 0;
 
+    ContourFunnel() {}
+
+    // Creates a funnel with custom tuning values, used by the offline replay tool to sweep them.
+    ContourFunnel(int minNumberOfContours, int maxNumberOfContours, double matchingThreshold,
+                  int autoScanThreshold, double autoScanMatchingThreshold) {
+        this.minNumberOfContours = minNumberOfContours;
+        this.maxNumberOfContours = maxNumberOfContours;
+        this.matchingThreshold = matchingThreshold;
+        this.autoScanThreshold = autoScanThreshold;
+        this.autoScanMatchingThreshold = autoScanMatchingThreshold;
+    }
+
     private ContourFunnelListener mListener;
     void registerContourFunnelListener(ContourFunnelListener mListener) {
         this.mListener = mListener;
@@ -164,23 +174,11 @@ class ContourFunnel {
     boolean contourIsWithin(ContourMatch baseContour, Quad currentDisplayedQuad, double matchingThreshold) {
         Quad baseQuad = baseContour.contour;
 
-        double topLeftDistance = euclideanDistance(baseQuad.lt, currentDisplayedQuad.lt);
-        if (topLeftDistance > matchingThreshold) return false;
-
-        double topRightDistance = euclideanDistance(baseQuad.rt, currentDisplayedQuad.rt);
-        if (topRightDistance > matchingThreshold) return false;
-
-        double bottomLeftDistance = euclideanDistance(baseQuad.lb, currentDisplayedQuad.lb);
-        if (bottomLeftDistance > matchingThreshold) return false;
-
-        double bottomRightDistance = euclideanDistance(baseQuad.rb, currentDisplayedQuad.rb);
-        if (bottomRightDistance > matchingThreshold) return false;
+        double thresholdSquared = matchingThreshold * matchingThreshold;
+        for (Corner corner : CORNERS) {
+            if (Geometry.cornerDistanceSquared(baseQuad, currentDisplayedQuad, corner) > thresholdSquared) return false;
+        }
 
         return true;
     }
-
-    // TODO: Generalise in math class
-    private double euclideanDistance(Point p1, Point p2) {
-        return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
-    }
 }
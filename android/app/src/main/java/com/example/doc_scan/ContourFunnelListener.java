@@ -0,0 +1,7 @@
+package com.example.doc_scan;
+
+import com.example.doc_scan.model.Quad;
+
+interface ContourFunnelListener {
+    void currentContourIs(Quad contour, FunnelResultAction action);
+}
@@ -0,0 +1,100 @@
+package com.example.doc_scan;
+
+import com.example.doc_scan.geometry.Geometry;
+import com.example.doc_scan.geometry.Transform;
+import com.example.doc_scan.model.Corner;
+import com.example.doc_scan.model.Quad;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+
+// Refines the corners of a quad that was detected on the low resolution preview, using the
+// full resolution capture. Only a small window around each corner is decoded and processed, so
+// the cost does not depend on the size of the capture.
+class CornerRefiner {
+    // Half the window size, as part of the longest image side, and its lower bound in pixels
+    private static final double WINDOW_FRACTION = 0.02;
+    private static final int MIN_HALF_WINDOW = 32;
+
+    private static final Corner[] CORNERS = Corner.values();
+
+    // Returns the quad with every corner moved to the nearest strong corner on an edge within
+    // its window, with sub-pixel precision. Corners without a candidate keep their position.
+    // 'quad' is in the coordinates of the rotated capture. The windows are decoded and searched
+    // in sensor orientation, only the corner positions are rotated.
+    static Quad refine(CaptureDecoder decoder, Quad quad) throws IOException {
+        Size imageSize = decoder.rotatedSize();
+        int halfWindow = Math.max(MIN_HALF_WINDOW, (int) (Math.max(imageSize.width, imageSize.height) * WINDOW_FRACTION));
+
+        Transform sensorToRotated = decoder.sensorToRotated();
+        Transform rotatedToSensor = sensorToRotated.inverse();
+
+        double[] refined = new double[8];
+        for (Corner corner : CORNERS) {
+            double x = quad.getX(corner);
+            double y = quad.getY(corner);
+            refined[2 * corner.ordinal()] = x;
+            refined[2 * corner.ordinal() + 1] = y;
+
+            Point sensorCorner = rotatedToSensor.apply(new Point(x, y));
+            Point refinedCorner = refineCorner(decoder, sensorCorner.x, sensorCorner.y, halfWindow);
+            if (refinedCorner != null) {
+                Point rotatedCorner = sensorToRotated.apply(refinedCorner);
+                refined[2 * corner.ordinal()] = rotatedCorner.x;
+                refined[2 * corner.ordinal() + 1] = rotatedCorner.y;
+            }
+        }
+
+        return new Quad(refined);
+    }
+
+    private static Point refineCorner(CaptureDecoder decoder, double x, double y, int halfWindow) throws IOException {
+        Rect window = decoder.clip(new Rect((int) x - halfWindow, (int) y - halfWindow, 2 * halfWindow, 2 * halfWindow));
+        if (window.width < 8 || window.height < 8) return null;
+        int colStart = window.x;
+        int rowStart = window.y;
+
+        try (MatArena arena = new MatArena()) {
+            Mat gray = arena.add(decoder.decodeGrayRegion(window));
+            Imgproc.GaussianBlur(gray, gray, new Size(3.0, 3.0), 0.0);
+
+            // Corner candidates have to lie on an edge of the paper
+            Mat edges = arena.add(new Mat());
+            Imgproc.Canny(gray, edges, 25, 200);
+            Mat kernel = arena.add(Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5.0, 5.0)));
+            Imgproc.dilate(edges, edges, kernel);
+
+            MatOfPoint candidates = arena.add(new MatOfPoint());
+            Imgproc.goodFeaturesToTrack(gray, candidates, 8, 0.05, 5, edges, 5, true, 0.04);
+
+            // Take the candidate closest to where the corner was expected
+            double localX = x - colStart;
+            double localY = y - rowStart;
+            Point best = null;
+            double bestDistance = Double.MAX_VALUE;
+            for (Point candidate : candidates.toArray()) {
+                double distance = Geometry.distanceSquared(candidate.x, candidate.y, localX, localY);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = candidate;
+                }
+            }
+            if (best == null) return null;
+
+            MatOfPoint2f subPixel = arena.add(new MatOfPoint2f(best));
+            Imgproc.cornerSubPix(gray, subPixel, new Size(5, 5), new Size(-1, -1),
+                    new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.01));
+            Point refined = subPixel.toArray()[0];
+
+            return new Point(refined.x + colStart, refined.y + rowStart);
+        }
+    }
+}
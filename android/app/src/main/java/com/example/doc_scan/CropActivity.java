@@ -4,57 +4,111 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewTreeObserver;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 
+import com.example.doc_scan.geometry.Transform;
 import com.example.doc_scan.model.Quad;
+import com.example.doc_scan.view.EdgeSnapMap;
 import com.example.doc_scan.view.PaperRectangle;
 import com.example.doc_scan.view.PaperRectangleCallback;
 
 import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
-import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.ArrayList;
-import java.util.List;
-
     public class CropActivity extends Activity implements PaperRectangleCallback {
     private static final String TAG = "DocScanner::CropAct";
 
-    public static Quad contour;
-    public static Mat image;
-    public static int openCVCamWidth;
-    public static int openCVCamHeight;
+    // The full resolution crop starts when the corners have not moved for this long
+    private static final long CROP_DEBOUNCE_MS = 300;
+    // Longest side of the live preview of the crop, in pixels
+    private static final int THUMBNAIL_SIZE = 256;
+
+    // The capture, the detected quad and the preview size come from the scan session
+    private ScanSession session;
 
     private Bitmap bm;
-    private Quad sharedQuad;
 
-    private Mat croppedGrayImage;
-    private Mat croppedThresholdImage;
+    // The capture decoded at the preview size. The crop and the corner refinement decode only
+    // the part of the full resolution capture they need.
+    private CaptureDecoder captureDecoder;
+    private Mat displayImage;
+
+    // Coordinate space conversions, composed once when the view has been laid out. The image
+    // view draws with scaleType centerCrop, these map to where it draws the image.
+    private Transform sensorToView;
+    private Transform imageToView;
+    private Transform displayToView;
+
+    private EdgeSnapMap edgeSnapMap;
+
+    // The background steps, cancelled when the activity is destroyed
+    private final CaptureProcessor processor = CaptureProcessor.get();
+    private CaptureProcessor.Job<DisplayImage> displayImageJob;
+    private CaptureProcessor.Job<EdgeSnapMap> edgeSnapMapJob;
+    private CaptureProcessor.Job<Quad> cornerRefinementJob;
+    private CaptureProcessor.Job<CroppedReceipt> cropJob;
+
+    // The crop is computed ahead, as soon as the corners settle, so Next usually finds it ready.
+    // Quads are immutable, so the corners a crop belongs to are compared by identity.
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable speculativeCrop = this::startCrop;
+    private boolean cornersAllowed = true;
+    private CroppedReceipt croppedReceipt;
+    private Quad croppedCorners;
+    private Quad cropJobCorners;
+    private boolean continueWhenCropped = false;
+
+    // Live preview of the crop while the corners are dragged, warped from the display image
+    private ImageView thumbnailImageView;
+    private final Mat thumbnail = new Mat();
+    private Bitmap thumbnailBitmap;
 
     ImageView scanPreviewImageView;
+    PaperRectangle paperRectangle;
 
     private ImageButton nextButton;
     private ImageButton prevButton;
+    private ProgressBar progressBar;
+
+    // The capture at preview size, as Mat and as bitmap for the image view
+    private static class DisplayImage {
+        final Mat image;
+        final Bitmap bitmap;
+
+        DisplayImage(Mat image, Bitmap bitmap) {
+            this.image = image;
+            this.bitmap = bitmap;
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_crop);
 
+        session = ScanSession.current();
+        if (session == null) {
+            finish();
+            return;
+        }
+
         scanPreviewImageView = findViewById(R.id.preview_image_view);
-        PaperRectangle paperRectangle = findViewById(R.id.quad_overlay);
+        paperRectangle = findViewById(R.id.quad_overlay);
         paperRectangle.registerPaperRectangleCallback(this);
         nextButton = findViewById(R.id.done_crop_button);
         prevButton = findViewById(R.id.back_to_scan_button);
+        progressBar = findViewById(R.id.crop_processing_progress_bar);
+        thumbnailImageView = findViewById(R.id.crop_thumbnail_image_view);
 
         scanPreviewImageView.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
             @Override
@@ -64,36 +118,27 @@ import java.util.List;
                 //modify the layout from within this method.
                 scanPreviewImageView.getViewTreeObserver().removeOnGlobalLayoutListener(this);
 
-                // Rotate image and convert to bitmap:
-                Mat img = image;
-
-                Core.flip(img.t(), img, 1);
-                bm = Bitmap.createBitmap(img.cols(), img.rows(), Bitmap.Config.ARGB_8888);
-                Utils.matToBitmap(img, bm);
+                // Only the JPEG header is read here, the decoding happens in the background
+                captureDecoder = new CaptureDecoder(session.jpegData, session.jpegRotation);
+                Size captureSize = captureDecoder.rotatedSize();
 
                 // Scale, Rotate and Transform the contour to fit the screen/the receipt
-                Quad drawableContour = prepareContour(contour, scanPreviewImageView);
+                prepareTransforms(captureSize, scanPreviewImageView);
+                Quad drawableContour = prepareContour(session.detectedQuad, scanPreviewImageView);
 
-                // Show the receipt image
-                scanPreviewImageView.setImageBitmap(bm);
+                // Present the quad contour, the image follows when it's decoded
+                paperRectangle.previewCorners(drawableContour);
+                decodeDisplayImage(scanPreviewImageView.getWidth(), scanPreviewImageView.getHeight());
 
-                // Present the quad contour on the image
-                drawableContour.resetCorrectPointPerCorner();
-                sharedQuad = drawableContour;
-                paperRectangle.previewCorners(sharedQuad);
+                // Refine the detected corners on the full resolution capture in the background,
+                // the crop starts after that
+                if (session.detectedQuad != null) refineCorners(drawableContour);
+                else startCrop();
             }
         });
 
         nextButton.setOnClickListener((View view) -> {
-            processImagesForPreview(this.image, sharedQuad);
-            if (croppedGrayImage != null && croppedThresholdImage != null) {
-                ReceiptPreviewActivity.croppedGrayImage = croppedGrayImage;
-                ReceiptPreviewActivity.croppedThresholdedImage = croppedThresholdImage;
-                ReceiptPreviewActivity.shouldShowThresholded = shouldShowThresholded(croppedGrayImage);
-                ReceiptPreviewActivity.originalImage = this.image;
-                Intent intent = new Intent(getBaseContext(), ReceiptPreviewActivity.class);
-                startActivity(intent);
-            }
+            onNextPressed();
         });
 
         prevButton.setOnClickListener((View view) -> {
@@ -101,113 +146,240 @@ import java.util.List;
         });
     }
 
-    private Quad prepareContour(Quad contour, ImageView imageView) {
-        Quad drawableContour;
-        int imageViewHeight = imageView.getHeight();
-        int imageViewWidth = imageView.getWidth();
+    // Decodes a rotated image just large enough for the view and converts it to a bitmap. When
+    // it is shown, the edges to snap the corners to are computed from it.
+    private void decodeDisplayImage(int viewWidth, int viewHeight) {
+        progressBar.setVisibility(View.VISIBLE);
+        CaptureDecoder decoder = captureDecoder;
+        displayImageJob = processor.submit(() -> {
+            Mat image = decoder.decodeReduced(viewWidth, viewHeight);
+            Bitmap bitmap = Bitmap.createBitmap(image.cols(), image.rows(), Bitmap.Config.ARGB_8888);
+            Utils.matToBitmap(image, bitmap);
+            return new DisplayImage(image, bitmap);
+        }, result -> {
+            if (!continueWhenCropped) progressBar.setVisibility(View.GONE);
+            if (result == null) return;
+
+            displayImage = result.image;
+            displayToView = centerCrop(displayImage.cols(), displayImage.rows(), scanPreviewImageView);
+            bm = result.bitmap;
+            scanPreviewImageView.setImageBitmap(bm);
+
+            computeEdgeSnapMap(viewWidth, viewHeight);
+        }, result -> {
+            result.image.release();
+            result.bitmap.recycle();
+        });
+    }
 
-        if (contour != null && contour.contourList.size() > 0) {
-            Point centerPoint = new Point(openCVCamWidth / 2, openCVCamHeight / 2);
-            contour.rotateCornerPoints(centerPoint);
-
-            // Rotate base
-            Point newXY = contour.rotatePointAround(new Point(0, openCVCamWidth), centerPoint, 90);
-
-            // Move base to center
-            double targetX = ((double) imageViewWidth / 2);
-            double baseX = ((double) openCVCamWidth / 2) + newXY.x;
-            double moveX = targetX - baseX;
-
-            double targetY = ((double) imageViewHeight / 2);
-            double baseY = ((double) openCVCamHeight / 2) + newXY.y;
-            double moveY = targetY - baseY;
-            contour.moveCornerPoints((int) moveX, (int) moveY);
-
-            // We assume the openCV scan view is centered in the view
-            // Now we scale the contour to fit the receipt/screen height
-            double scaleHeight = (double) imageViewHeight / (double) openCVCamHeight;
-            Point scaleCenter = new Point(imageViewWidth / 2, imageViewHeight / 2);
-            contour.scaleCornerPoints(scaleHeight, scaleCenter);
-            drawableContour = contour;
-        } else {
-            int padding = 200;
-            Point[] points = {
-                    new Point(padding, padding),
-                    new Point(imageViewWidth - padding, padding),
-                    new Point(imageViewWidth - padding, imageViewHeight - padding),
-                    new Point(padding, imageViewHeight - padding),
-            };
-            MatOfPoint simplePoints = new MatOfPoint();
-            simplePoints.fromArray(points);
-            List<MatOfPoint> contourTemp = new ArrayList<>();
-            contourTemp.add(simplePoints);
-            drawableContour = new Quad(contourTemp);
-        }
+    // Computes the edge map of the captured image as the preview shows it
+    private void computeEdgeSnapMap(int viewWidth, int viewHeight) {
+        if (viewWidth == 0 || viewHeight == 0) return;
+
+        Mat image = displayImage;
+        Transform toView = displayToView;
+        edgeSnapMapJob = processor.submit(() -> EdgeSnapMap.compute(image, toView, viewWidth, viewHeight), result -> {
+            if (result == null) return;
+            edgeSnapMap = result;
+            paperRectangle.setEdgeSnapMap(result);
+        }, EdgeSnapMap::release);
+    }
 
-        return drawableContour;
+    // Moves the detected corners to the corners found in the full resolution capture. The
+    // result is only shown if the user did not adjust the quad in the meantime.
+    private void refineCorners(Quad viewQuad) {
+        CaptureDecoder decoder = captureDecoder;
+        Transform toView = imageToView;
+        Transform viewToImage = imageToView.inverse();
+        cornerRefinementJob = processor.submit(
+                () -> toView.apply(CornerRefiner.refine(decoder, viewToImage.apply(viewQuad))),
+                refined -> {
+                    // Once the user moved a corner, their edits schedule the crop
+                    if (paperRectangle.getCorners() != viewQuad) return;
+                    if (refined != null) paperRectangle.previewCorners(refined);
+                    startCrop();
+                });
     }
 
-    private void processImagesForPreview(Mat image, Quad cornerQuad) {
-        // Crop the image
-        Mat cropped = cropPicture(image, cornerQuad);
-        if (cropped == null) return;
+    // Continues with the crop of the current corners, right away if it's ready, otherwise when
+    // its job is done
+    private void onNextPressed() {
+        if (captureDecoder == null) return;
 
-        // Grayscale the image
-        Mat mGray = new Mat(cropped.size(), CvType.CV_8UC4);
-        Imgproc.cvtColor(cropped, mGray, Imgproc.COLOR_RGBA2GRAY);
+        // The user accepted these corners, nothing may change them anymore
+        handler.removeCallbacks(speculativeCrop);
+        if (cornerRefinementJob != null) cornerRefinementJob.cancel();
 
-        Mat mThreshold = new Mat(mGray.size(), CvType.CV_8UC4);
-        Imgproc.threshold(mGray, mThreshold, 150, 255, Imgproc.THRESH_BINARY +  Imgproc.THRESH_OTSU);
+        if (croppedReceipt != null && croppedCorners == paperRectangle.getCorners()) {
+            showReceiptPreview();
+            return;
+        }
 
-        this.croppedGrayImage = mGray;
-        this.croppedThresholdImage = mThreshold;
+        continueWhenCropped = true;
+        progressBar.setVisibility(View.VISIBLE);
+        startCrop();
     }
 
-    private double grayMeanThreshold = 170;
-    private boolean shouldShowThresholded(Mat grayImage) {
-        Scalar mean = Core.mean(grayImage);
-        double meanValue = mean.val[0];
-        Log.i(TAG, "(mean) " + meanValue);
-        return meanValue < grayMeanThreshold;
+    private void scheduleCrop() {
+        handler.removeCallbacks(speculativeCrop);
+        handler.postDelayed(speculativeCrop, CROP_DEBOUNCE_MS);
     }
 
-    private Mat cropPicture(Mat sourceImage, Quad cornerQuad) {
-        if (cornerQuad == null) { return null; }
+    // Crops the capture along the current corners in the background, unless that crop is
+    // already done or running. A running crop of older corners is cancelled.
+    private void startCrop() {
+        Quad corners = paperRectangle.getCorners();
+        if (captureDecoder == null || corners == null || !cornersAllowed) {
+            if (continueWhenCropped) {
+                continueWhenCropped = false;
+                progressBar.setVisibility(View.GONE);
+            }
+            return;
+        }
+        if (corners == croppedCorners || corners == cropJobCorners) return;
+
+        if (cropJob != null) cropJob.cancel();
+        cropJobCorners = corners;
 
-        double widthBottom = Math.sqrt(Math.pow(cornerQuad.rb.x - cornerQuad.lb.x, 2) + Math.pow(cornerQuad.rb.y - cornerQuad.lb.y, 2));
-        double widthTop = Math.sqrt(Math.pow(cornerQuad.rt.x - cornerQuad.lt.x, 2) + Math.pow(cornerQuad.rt.y - cornerQuad.lt.y, 2));
-        int maxWidth = (int) Math.max(widthBottom, widthTop);
+        CaptureDecoder decoder = captureDecoder;
+        Transform toView = imageToView;
+        cropJob = processor.submit(() -> CroppedReceipt.compute(decoder, toView, corners), cropped -> {
+            cropJob = null;
+            cropJobCorners = null;
 
-        double heightLeft = Math.sqrt(Math.pow(cornerQuad.lb.x - cornerQuad.lt.x, 2) + Math.pow(cornerQuad.lb.y - cornerQuad.lt.y, 2));
-        double heightRight = Math.sqrt(Math.pow(cornerQuad.rb.x - cornerQuad.rt.x, 2) + Math.pow(cornerQuad.rb.y - cornerQuad.rt.y, 2));
-        int maxHeight = (int) Math.max(heightLeft, heightRight);
+            if (cropped != null) {
+                releaseCroppedReceipt();
+                croppedReceipt = cropped;
+                croppedCorners = corners;
+            }
+
+            if (continueWhenCropped) {
+                continueWhenCropped = false;
+                progressBar.setVisibility(View.GONE);
+                if (cropped != null) showReceiptPreview();
+            }
+        }, CroppedReceipt::release);
+    }
 
-        Mat croppedPicture = new Mat(maxHeight, maxWidth, CvType.CV_8UC4);
+    private void showReceiptPreview() {
+        session.setCroppedReceipt(croppedReceipt);
+        Intent intent = new Intent(getBaseContext(), ReceiptPreviewActivity.class);
+        startActivity(intent);
+    }
 
-        Mat srcMat = new Mat(4, 1, CvType.CV_32FC2);
-        Mat dstMat = new Mat(4, 1, CvType.CV_32FC2);
+    // Gives up this activity's references, the session and the preview keep their own
+    private void releaseCroppedReceipt() {
+        if (croppedReceipt != null) croppedReceipt.release();
+        croppedReceipt = null;
+        croppedCorners = null;
+    }
 
-        double scaleX = (double) sourceImage.cols() / (double) scanPreviewImageView.getWidth();
-        double scaleY = (double) sourceImage.rows() / (double) scanPreviewImageView.getHeight();
+    // Warps the display image to a small preview of the crop. The output is tiny, so this is
+    // cheap enough for every move of a corner.
+    private void updateThumbnail(Quad corners) {
+        if (displayImage == null) return;
 
-        srcMat.put(0, 0, cornerQuad.lt.x * scaleX, cornerQuad.lt.y * scaleY,
-                cornerQuad.rt.x * scaleX, cornerQuad.rt.y * scaleY,
-                cornerQuad.lb.x * scaleX, cornerQuad.lb.y * scaleY,
-                cornerQuad.rb.x * scaleX, cornerQuad.rb.y * scaleY);
+        Size cropSize = CroppedReceipt.cropSize(corners);
+        if (cropSize.width == 0 || cropSize.height == 0) return;
 
-        dstMat.put(0, 0, 0.0              , 0.0,
-                (double) maxWidth, 0.0,
-                0.0              , (double) maxHeight,
-                (double) maxWidth, (double) maxHeight);
+        double scale = THUMBNAIL_SIZE / Math.max(cropSize.width, cropSize.height);
+        Size size = new Size(Math.max(1, Math.round(cropSize.width * scale)),
+                Math.max(1, Math.round(cropSize.height * scale)));
 
-        Mat pt = Imgproc.getPerspectiveTransform(srcMat, dstMat);
-        Imgproc.warpPerspective(sourceImage, croppedPicture, pt, croppedPicture.size());
+        Mat pt = displayToView.then(CroppedReceipt.viewToCrop(corners, size)).toMat();
+        Imgproc.warpPerspective(displayImage, thumbnail, pt, size);
         pt.release();
-        srcMat.release();
+        Imgproc.cvtColor(thumbnail, thumbnail, Imgproc.COLOR_RGBA2GRAY);
 
-        dstMat.release();
+        // The bitmap is only replaced when the size changes, the old one may still be drawn
+        if (thumbnailBitmap == null || thumbnailBitmap.getWidth() != thumbnail.cols()
+                || thumbnailBitmap.getHeight() != thumbnail.rows()) {
+            thumbnailBitmap = Bitmap.createBitmap(thumbnail.cols(), thumbnail.rows(), Bitmap.Config.ARGB_8888);
+        }
+        Utils.matToBitmap(thumbnail, thumbnailBitmap);
+        thumbnailImageView.setImageBitmap(thumbnailBitmap);
+        thumbnailImageView.setVisibility(View.VISIBLE);
+    }
 
-        return croppedPicture;
+    // Composes the mapping from the OpenCV preview frame to the image view, and from the
+    // captured image to the image view.
+    private void prepareTransforms(Size captureSize, ImageView imageView) {
+        int imageViewHeight = imageView.getHeight();
+        int imageViewWidth = imageView.getWidth();
+        int openCVCamWidth = session.previewWidth;
+        int openCVCamHeight = session.previewHeight;
+
+        // The preview frame is in sensor orientation, it's rotated by the same angle as the
+        // capture. A quarter turn swaps its width and height.
+        boolean quarterTurn = session.jpegRotation % 180 != 0;
+        double frameWidth = quarterTurn ? openCVCamHeight : openCVCamWidth;
+        double frameHeight = quarterTurn ? openCVCamWidth : openCVCamHeight;
+        Point centerPoint = new Point(openCVCamWidth / 2, openCVCamHeight / 2);
+        Transform rotation = Transform.rotation(session.jpegRotation, centerPoint);
+
+        // Move the center of the rotated frame to the center of the view
+        Point frameCenter = rotation.apply(new Point(frameWidth / 2, frameHeight / 2));
+        double moveX = (double) imageViewWidth / 2 - frameCenter.x;
+        double moveY = (double) imageViewHeight / 2 - frameCenter.y;
+
+        // We assume the openCV scan view is centered in the view
+        // Now we scale the contour to fit the receipt/screen height
+        double scaleHeight = (double) imageViewHeight / (double) openCVCamHeight;
+        Point scaleCenter = new Point(imageViewWidth / 2, imageViewHeight / 2);
+
+        sensorToView = rotation
+                .then(Transform.translation(moveX, moveY))
+                .then(Transform.scale(scaleHeight, scaleCenter));
+
+        imageToView = centerCrop(captureSize.width, captureSize.height, imageView);
+    }
+
+    // Maps an image of 'width' x 'height' the way an ImageView with scaleType centerCrop draws
+    // it: scaled to cover the view, centered, and the offset rounded to whole pixels
+    private static Transform centerCrop(double width, double height, ImageView imageView) {
+        double scale = Math.max(imageView.getWidth() / width, imageView.getHeight() / height);
+        return Transform.scale(scale, scale).then(Transform.translation(
+                Math.round((imageView.getWidth() - width * scale) / 2),
+                Math.round((imageView.getHeight() - height * scale) / 2)));
+    }
+
+    // The speculative crop can be recomputed, a crop that was confirmed is kept by the session
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) releaseCroppedReceipt();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(speculativeCrop);
+        if (displayImageJob != null) displayImageJob.cancel();
+        if (cornerRefinementJob != null) cornerRefinementJob.cancel();
+        if (cropJob != null) cropJob.cancel();
+        if (edgeSnapMapJob != null) edgeSnapMapJob.cancel();
+        if (edgeSnapMap != null) edgeSnapMap.release();
+        releaseCroppedReceipt();
+        thumbnail.release();
+
+        // A running edge map step still reads the display image, it's left to the garbage
+        // collector then
+        boolean displayImageInUse = edgeSnapMapJob != null && !edgeSnapMapJob.isFinished();
+        if (displayImage != null && !displayImageInUse) displayImage.release();
+        if (captureDecoder != null) captureDecoder.release();
+    }
+
+    private Quad prepareContour(Quad contour, ImageView imageView) {
+        if (contour != null) return sensorToView.apply(contour);
+
+        int imageViewHeight = imageView.getHeight();
+        int imageViewWidth = imageView.getWidth();
+        int padding = 200;
+        return new Quad(
+                new Point(padding, padding),
+                new Point(imageViewWidth - padding, padding),
+                new Point(imageViewWidth - padding, imageViewHeight - padding),
+                new Point(padding, imageViewHeight - padding));
     }
 
     @Override
@@ -217,6 +389,12 @@ import java.util.List;
 
         if (allowed) nextButton.setAlpha(1f);
         else nextButton.setAlpha(.5f);
+        cornersAllowed = allowed;
     }
-}
 
+    @Override
+    public void paperRectangleChanged(Quad corners) {
+        updateThumbnail(corners);
+        scheduleCrop();
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.doc_scan;
+
+import android.util.Log;
+
+import com.example.doc_scan.geometry.Geometry;
+import com.example.doc_scan.geometry.Transform;
+import com.example.doc_scan.model.Corner;
+import com.example.doc_scan.model.Quad;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+
+// The receipt cut out of the capture along the quad the user confirmed, in gray, and whether
+// the thresholded version should be shown first. It holds one reference to the image, release()
+// gives it up. The crop is computed ahead while the corners are still being adjusted, so the
+// threshold is left to the ScanSession, once the corners are confirmed.
+class CroppedReceipt {
+    private static final String TAG = "DocScanner::Crop";
+    private static final double GRAY_MEAN_THRESHOLD = 170;
+    // The background light is estimated on a copy of at most this many pixels on its longest
+    // side. Text lines are then a few pixels high and the close below fills them.
+    private static final int BACKGROUND_SIZE = 256;
+    private static final int BACKGROUND_CLOSE_SIZE = 7;
+    private static final double BACKGROUND_BLUR_SIGMA = 3;
+    // The skew is estimated on a crop of at most this many pixels on its longest side
+    private static final int DESKEW_SIZE = 512;
+    // Smaller skews are left alone, they are within the error of the estimate
+    private static final double MIN_DESKEW_ANGLE = 0.2;
+
+    // How the gray crop is binarized, picked per scan
+    enum Binarization {
+        // One global threshold, fast, fine for evenly lit receipts
+        OTSU,
+        // A local threshold per pixel, follows shadows and uneven light
+        SAUVOLA;
+
+        // The method named by Flutter, Otsu if the name is missing or unknown
+        static Binarization fromName(String name) {
+            if (name == null) return OTSU;
+            for (Binarization binarization : values()) {
+                if (binarization.name().equalsIgnoreCase(name)) return binarization;
+            }
+            Log.w(TAG, "Unknown binarization " + name + ", using Otsu");
+            return OTSU;
+        }
+    }
+
+    final SharedMat gray;
+    final boolean shouldShowThresholded;
+    private boolean released = false;
+
+    private CroppedReceipt(Mat gray, boolean shouldShowThresholded) {
+        this.gray = new SharedMat(gray);
+        this.shouldShowThresholded = shouldShowThresholded;
+    }
+
+    // Crops the full resolution capture. 'viewQuad' is in view coordinates and 'imageToView'
+    // maps the rotated capture to the view. Returns null if the quad is outside the capture.
+    // This is slow, run it on the CaptureProcessor. Once its job is cancelled it stops at the
+    // next stage.
+    static CroppedReceipt compute(CaptureDecoder decoder, Transform imageToView, Quad viewQuad) throws IOException {
+        Mat mGray = cropPicture(decoder, imageToView, viewQuad);
+        if (mGray == null) return null;
+
+        try {
+            CaptureProcessor.throwIfCancelled();
+            // Decided on the crop as it was lit, the normalized crop is always bright
+            boolean shouldShowThresholded = shouldShowThresholded(mGray);
+            normalizeIllumination(mGray);
+            return new CroppedReceipt(mGray, shouldShowThresholded);
+        } catch (RuntimeException e) {
+            mGray.release();
+            throw e;
+        }
+    }
+
+    // Binarizes the gray crop with the given method
+    static Mat threshold(Mat gray, Binarization binarization) {
+        if (binarization == Binarization.SAUVOLA) return SauvolaBinarizer.binarize(gray);
+
+        Mat mThreshold = new Mat(gray.size(), CvType.CV_8UC1);
+        Imgproc.threshold(gray, mThreshold, 150, 255, Imgproc.THRESH_BINARY +  Imgproc.THRESH_OTSU);
+        return mThreshold;
+    }
+
+    // Divides the background light out of the gray crop, in place, so lamp gradients and
+    // shadows don't end up as black areas after the threshold. The background is the crop with
+    // the text closed away and blurred, computed on a small copy and scaled back up.
+    static void normalizeIllumination(Mat gray) {
+        int longestSide = Math.max(gray.cols(), gray.rows());
+        if (longestSide == 0) return;
+        double scale = Math.min(1, (double) BACKGROUND_SIZE / longestSide);
+        Size smallSize = new Size(Math.max(1, Math.round(gray.cols() * scale)),
+                Math.max(1, Math.round(gray.rows() * scale)));
+
+        try (MatArena arena = new MatArena()) {
+            Mat small = arena.add(new Mat());
+            Imgproc.resize(gray, small, smallSize, 0, 0, Imgproc.INTER_AREA);
+
+            Mat kernel = arena.add(Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE,
+                    new Size(BACKGROUND_CLOSE_SIZE, BACKGROUND_CLOSE_SIZE)));
+            Imgproc.morphologyEx(small, small, Imgproc.MORPH_CLOSE, kernel);
+            Imgproc.GaussianBlur(small, small, new Size(0, 0), BACKGROUND_BLUR_SIGMA);
+
+            Mat background = arena.add(new Mat());
+            Imgproc.resize(small, background, gray.size(), 0, 0, Imgproc.INTER_LINEAR);
+            // gray * 255 / background, saturated: the paper becomes white wherever it's lit
+            Core.divide(gray, background, gray, 255);
+        }
+    }
+
+    // Gives up the reference this receipt holds. Can be called more than once.
+    synchronized void release() {
+        if (released) return;
+        released = true;
+        gray.release();
+    }
+
+    private static boolean shouldShowThresholded(Mat grayImage) {
+        Scalar mean = Core.mean(grayImage);
+        double meanValue = mean.val[0];
+        Log.i(TAG, "(mean) " + meanValue);
+        return meanValue < GRAY_MEAN_THRESHOLD;
+    }
+
+    // The size of the crop of 'viewQuad': the longest of the opposite sides, in view pixels
+    static Size cropSize(Quad viewQuad) {
+        double ltX = viewQuad.getX(Corner.LEFT_TOP), ltY = viewQuad.getY(Corner.LEFT_TOP);
+        double rtX = viewQuad.getX(Corner.RIGHT_TOP), rtY = viewQuad.getY(Corner.RIGHT_TOP);
+        double lbX = viewQuad.getX(Corner.LEFT_BOTTOM), lbY = viewQuad.getY(Corner.LEFT_BOTTOM);
+        double rbX = viewQuad.getX(Corner.RIGHT_BOTTOM), rbY = viewQuad.getY(Corner.RIGHT_BOTTOM);
+
+        double widthBottom = Geometry.distance(rbX, rbY, lbX, lbY);
+        double widthTop = Geometry.distance(rtX, rtY, ltX, ltY);
+        int maxWidth = (int) Math.max(widthBottom, widthTop);
+
+        double heightLeft = Geometry.distance(lbX, lbY, ltX, ltY);
+        double heightRight = Geometry.distance(rbX, rbY, rtX, rtY);
+        int maxHeight = (int) Math.max(heightLeft, heightRight);
+
+        return new Size(maxWidth, maxHeight);
+    }
+
+    // The perspective transform from 'viewQuad' to the upright rectangle of 'size'
+    static Transform viewToCrop(Quad viewQuad, Size size) {
+        Mat srcMat = new Mat(4, 1, CvType.CV_32FC2);
+        Mat dstMat = new Mat(4, 1, CvType.CV_32FC2);
+
+        srcMat.put(0, 0, viewQuad.getX(Corner.LEFT_TOP), viewQuad.getY(Corner.LEFT_TOP),
+                viewQuad.getX(Corner.RIGHT_TOP), viewQuad.getY(Corner.RIGHT_TOP),
+                viewQuad.getX(Corner.LEFT_BOTTOM), viewQuad.getY(Corner.LEFT_BOTTOM),
+                viewQuad.getX(Corner.RIGHT_BOTTOM), viewQuad.getY(Corner.RIGHT_BOTTOM));
+
+        dstMat.put(0, 0, 0.0, 0.0,
+                size.width, 0.0,
+                0.0, size.height,
+                size.width, size.height);
+
+        Mat perspective = Imgproc.getPerspectiveTransform(srcMat, dstMat);
+        Transform viewToCrop = Transform.fromMat(perspective);
+        perspective.release();
+        srcMat.release();
+        dstMat.release();
+        return viewToCrop;
+    }
+
+    private static Mat cropPicture(CaptureDecoder decoder, Transform imageToView, Quad cornerQuad) throws IOException {
+        if (cornerQuad == null) { return null; }
+
+        Size size = cropSize(cornerQuad);
+        if (size.width == 0 || size.height == 0) return null;
+
+        // Only the bounding box of the quad in the capture is decoded, in gray and in sensor
+        // orientation. The margin covers the interpolation at the border.
+        Transform sensorToView = decoder.sensorToRotated().then(imageToView);
+        Quad sensorQuad = sensorToView.inverse().apply(cornerQuad);
+        Rect region = decoder.clip(boundingBox(sensorQuad, 2));
+        if (region.width == 0 || region.height == 0) return null;
+
+        Mat sourceImage = decoder.decodeGrayRegion(region);
+        try {
+            return warpRegion(sourceImage, region, sensorToView, cornerQuad, size);
+        } finally {
+            sourceImage.release();
+        }
+    }
+
+    // Warps the decoded 'region' of the capture to the deskewed crop of 'size'
+    private static Mat warpRegion(Mat sourceImage, Rect region, Transform sensorToView, Quad cornerQuad, Size size) {
+        CaptureProcessor.throwIfCancelled();
+
+        // The quad is in view coordinates, so map the region to the sensor, rotate it upright
+        // and map it to the view first. The deskew rotation is added to the same homography, so
+        // the region is warped once at full resolution.
+        Transform regionToCrop = Transform.translation(region.x, region.y)
+                .then(sensorToView)
+                .then(viewToCrop(cornerQuad, size));
+        double skew = estimateSkew(sourceImage, regionToCrop, size);
+        if (Math.abs(skew) >= MIN_DESKEW_ANGLE) {
+            Log.i(TAG, "Deskewing by " + skew + " degrees");
+            regionToCrop = regionToCrop.then(Transform.rotation(-skew, new Point(size.width / 2, size.height / 2)));
+        }
+        CaptureProcessor.throwIfCancelled();
+
+        Mat croppedPicture = new Mat(size, CvType.CV_8UC1);
+        Mat pt = regionToCrop.toMat();
+        Imgproc.warpPerspective(sourceImage, croppedPicture, pt, croppedPicture.size());
+        pt.release();
+
+        return croppedPicture;
+    }
+
+    // The skew of the text in the crop of 'size' that 'regionToCrop' makes of 'sourceImage',
+    // estimated on a small thresholded version of that crop
+    private static double estimateSkew(Mat sourceImage, Transform regionToCrop, Size size) {
+        double scale = Math.min(1, DESKEW_SIZE / Math.max(size.width, size.height));
+        Size smallSize = new Size(Math.max(1, Math.round(size.width * scale)),
+                Math.max(1, Math.round(size.height * scale)));
+
+        try (MatArena arena = new MatArena()) {
+            Mat small = arena.add(new Mat(smallSize, CvType.CV_8UC1));
+            Mat pt = arena.add(regionToCrop.then(Transform.scale(scale, scale)).toMat());
+            Imgproc.warpPerspective(sourceImage, small, pt, smallSize);
+
+            normalizeIllumination(small);
+            Imgproc.threshold(small, small, 0, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
+            return DeskewEstimator.estimateAngle(small);
+        }
+    }
+
+    // The smallest pixel rectangle containing the quad, grown by 'margin' on every side
+    private static Rect boundingBox(Quad quad, int margin) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Corner corner : Corner.values()) {
+            minX = Math.min(minX, quad.getX(corner));
+            minY = Math.min(minY, quad.getY(corner));
+            maxX = Math.max(maxX, quad.getX(corner));
+            maxY = Math.max(maxY, quad.getY(corner));
+        }
+        int left = (int) Math.floor(minX) - margin;
+        int top = (int) Math.floor(minY) - margin;
+        int right = (int) Math.ceil(maxX) + margin;
+        int bottom = (int) Math.ceil(maxY) + margin;
+        return new Rect(left, top, right - left, bottom - top);
+    }
+}
@@ -9,21 +9,22 @@ import android.util.AttributeSet;
 import android.util.Log;
 
 import org.opencv.android.JavaCameraView;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.util.List;
 
 interface OnImageEventListener {
-    void imageTaken(Mat image);
+    // 'jpegData' is the picture as compressed by the camera, in sensor orientation. 'rotation'
+    // is the clockwise rotation in degrees that turns it upright when the device is held in
+    // portrait.
+    void imageTaken(byte[] jpegData, int rotation);
 }
 
 
 public class CustomCameraView extends JavaCameraView implements PictureCallback {
+    private static final String TAG = "DocScanner::CameraView";
 
     private int flashState = 0;
+    private final PictureSizePolicy pictureSizePolicy;
 
     public OnImageEventListener mPictureListener;
 
@@ -31,7 +32,10 @@ public class CustomCameraView extends JavaCameraView implements PictureCallback
         this.mPictureListener = mPictureListener;
     }
 
-    public CustomCameraView(Context context, AttributeSet attrs) { super(context, attrs); }
+    public CustomCameraView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        pictureSizePolicy = new PictureSizePolicy(context);
+    }
 
     public int circleFlashState() {
         if (flashState < 2) {
@@ -69,12 +73,31 @@ public class CustomCameraView extends JavaCameraView implements PictureCallback
         mCamera.setParameters(params);
     }
 
-    public void takePicture() {
+    // 'receiptWidth' is the width of the detected receipt in preview pixels, 0 if there is none.
+    // The picture is taken at the smallest size that is sharp enough for it.
+    public void takePicture(double receiptWidth) {
         if (mCamera == null) return;
         mCamera.setPreviewCallback(null);
+        applyPictureSize(receiptWidth);
         mCamera.takePicture(null, null, this);
     }
 
+    private void applyPictureSize(double receiptWidth) {
+        try {
+            Camera.Parameters params = mCamera.getParameters();
+            int[] size = pictureSizePolicy.choose(params, mCameraIndex, receiptWidth);
+            if (size == null) return;
+
+            Camera.Size current = params.getPictureSize();
+            if (current.width == size[0] && current.height == size[1]) return;
+            params.setPictureSize(size[0], size[1]);
+            mCamera.setParameters(params);
+        } catch (RuntimeException e) {
+            // The picture is taken at the size the camera had
+            Log.w(TAG, "Could not set the picture size", e);
+        }
+    }
+
     public void resetFlash() {
         flashState = 0;
     }
@@ -83,21 +106,35 @@ public class CustomCameraView extends JavaCameraView implements PictureCallback
         return flashState;
     }
 
+    // The JPEG is passed on as is. It is decoded later, at the resolution each step needs.
     @Override
     public void onPictureTaken(byte[] data, Camera camera) {
         Camera.Size pictureSize = camera.getParameters().getPictureSize();
 
         Log.i("XXX", "W: " + pictureSize.width + " - H: " + pictureSize.height);
 
-        Mat mat = new Mat(pictureSize.height, pictureSize.width, CvType.CV_8U);
-        mat.put(0,0, data);
-
-        Mat pic = Imgcodecs.imdecode(mat, Imgcodecs.CV_LOAD_IMAGE_UNCHANGED);
-
-        mat.release();
+        mPictureListener.imageTaken(data, sensorOrientation());
+    }
 
-        Imgproc.cvtColor(pic, pic, Imgproc.COLOR_RGB2BGRA);
+    // Camera.CameraInfo.orientation of the camera JavaCameraView opened for mCameraIndex: the
+    // clockwise rotation that turns its pictures upright in portrait. CAMERA_ID_ANY opens the
+    // first back facing camera, like Camera.open().
+    private int sensorOrientation() {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        int cameraCount = Camera.getNumberOfCameras();
+        if (mCameraIndex >= 0 && mCameraIndex < cameraCount) {
+            Camera.getCameraInfo(mCameraIndex, info);
+            return info.orientation;
+        }
 
-        mPictureListener.imageTaken(pic);
+        int facing = mCameraIndex == CAMERA_ID_FRONT
+                ? Camera.CameraInfo.CAMERA_FACING_FRONT : Camera.CameraInfo.CAMERA_FACING_BACK;
+        for (int id = 0; id < cameraCount; id++) {
+            Camera.getCameraInfo(id, info);
+            if (info.facing == facing) return info.orientation;
+        }
+        // JavaCameraView falls back to the first camera
+        Camera.getCameraInfo(0, info);
+        return info.orientation;
     }
 }
@@ -0,0 +1,95 @@
+package com.example.doc_scan;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+// Estimates how far the text lines of a cropped receipt are rotated. The dark pixels are
+// projected onto the axis perpendicular to a candidate angle: at the angle of the text lines the
+// projection profile is made of sharp peaks (the lines) and empty gaps, so the sum of its
+// squared bins is highest there. The angles are searched coarse to fine.
+//
+// Meant for a small thresholded crop, a few hundred pixels on its longest side.
+final class DeskewEstimator {
+    // Receipts that are rotated further than this were cropped wrong, not photographed askew
+    private static final double MAX_ANGLE = 8;
+    private static final double COARSE_STEP = 1;
+    private static final double FINE_STEP = 0.1;
+    // The part of every side that is ignored, it often holds the table around the receipt
+    private static final double BORDER_FRACTION = 0.05;
+    private static final int MIN_TEXT_PIXELS = 100;
+
+    private DeskewEstimator() {}
+
+    // The angle in degrees, clockwise in image coordinates, of the text lines in 'binary': a
+    // single channel 8 bit Mat with black text on white. Rotating the image by minus this angle
+    // straightens the lines. Returns 0 if there is too little text to tell.
+    static double estimateAngle(Mat binary) {
+        int width = binary.cols();
+        int height = binary.rows();
+        if (width == 0 || height == 0) return 0;
+
+        byte[] pixels = new byte[width * height];
+        Mat continuous = binary.isContinuous() ? binary : binary.clone();
+        continuous.get(0, 0, pixels);
+        if (continuous != binary) continuous.release();
+
+        int[] xs = new int[pixels.length];
+        int[] ys = new int[pixels.length];
+        int count = 0;
+        int borderX = (int) (width * BORDER_FRACTION);
+        int borderY = (int) (height * BORDER_FRACTION);
+        for (int y = borderY; y < height - borderY; y++) {
+            for (int x = borderX; x < width - borderX; x++) {
+                if (pixels[y * width + x] == 0) {
+                    xs[count] = x;
+                    ys[count] = y;
+                    count++;
+                }
+            }
+        }
+        if (count < MIN_TEXT_PIXELS) return 0;
+
+        // Any y - x * tan(angle) within the search range fits in these bins
+        int[] bins = new int[height + 2 * width + 2];
+
+        double best = search(xs, ys, count, width, bins, -MAX_ANGLE, MAX_ANGLE, COARSE_STEP);
+        return search(xs, ys, count, width, bins, best - COARSE_STEP, best + COARSE_STEP, FINE_STEP);
+    }
+
+    // Returns the angle in [from, to], in steps of 'step', with the sharpest profile
+    private static double search(int[] xs, int[] ys, int count, int width, int[] bins,
+                                 double from, double to, double step) {
+        double bestAngle = 0;
+        long bestScore = -1;
+        int steps = (int) Math.round((to - from) / step);
+        for (int i = 0; i <= steps; i++) {
+            double angle = from + i * step;
+            long score = profileScore(xs, ys, count, width, bins, angle);
+            // On a tie the smaller correction wins
+            if (score > bestScore || (score == bestScore && Math.abs(angle) < Math.abs(bestAngle))) {
+                bestScore = score;
+                bestAngle = angle;
+            }
+        }
+        return bestAngle;
+    }
+
+    // The sum of the squared bins of the profile of the lines at 'angle'
+    private static long profileScore(int[] xs, int[] ys, int count, int width, int[] bins, double angle) {
+        double radians = Math.toRadians(angle);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+
+        Arrays.fill(bins, 0);
+        for (int i = 0; i < count; i++) {
+            // The distance to the line through the origin at 'angle', shifted to be positive
+            int bin = (int) Math.round(ys[i] * cos - xs[i] * sin) + width;
+            bins[bin]++;
+        }
+
+        long score = 0;
+        for (int bin : bins) score += (long) bin * bin;
+        return score;
+    }
+}
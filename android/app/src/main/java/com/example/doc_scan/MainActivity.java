@@ -24,6 +24,9 @@ import io.flutter.plugins.GeneratedPluginRegistrant;
 public class MainActivity extends FlutterActivity {
   private static final String CHANNEL = "tests.mwsd.dev/documentScanner";
 
+  private String binarization;
+  private boolean multiCapture;
+
   @Override
   public void configureFlutterEngine(@NonNull FlutterEngine flutterEngine) {
     GeneratedPluginRegistrant.registerWith(flutterEngine);
@@ -31,6 +34,10 @@ public class MainActivity extends FlutterActivity {
         .setMethodCallHandler(
           (call, result) -> {
             if (call.method.equals("openDocumentScanner")) {
+              // Optional: "otsu" (the default) or "sauvola"
+              binarization = call.argument("binarization");
+              // Optional: true to scan a long receipt in several captures
+              multiCapture = Boolean.TRUE.equals(call.argument("multiCapture"));
               this.openDocumentScanner();
 
               LocalBroadcastManager.getInstance(this).registerReceiver(new BroadcastReceiver() {
@@ -55,6 +62,13 @@ public class MainActivity extends FlutterActivity {
         super.onDestroy();
     }
 
+    // The scan screens run on top of this activity, it gets every trim request of the flow
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ScanSession.trimMemory(level);
+    }
+
     private void openDocumentScanner() {
         if (checkPermission()) {
             this.showDocumentScanner();
@@ -65,6 +79,8 @@ public class MainActivity extends FlutterActivity {
 
     private void showDocumentScanner() {
         Intent intent = new Intent(MainActivity.this, CameraView.class);
+        intent.putExtra(CameraView.EXTRA_BINARIZATION, binarization);
+        intent.putExtra(CameraView.EXTRA_MULTI_CAPTURE, multiCapture);
         startActivity(intent);
     }
 
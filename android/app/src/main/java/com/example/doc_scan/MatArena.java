@@ -0,0 +1,44 @@
+package com.example.doc_scan;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the Mats of one scope, e.g. a preview frame or a step of a capture, and releases
+// them all when the scope is closed:
+//
+//   try (MatArena arena = new MatArena()) {
+//       Mat edges = arena.add(new Mat());
+//       ...
+//   }
+//
+// Mats added to an arena are tracked by the MatTracker in debug builds, all at the site the
+// first one was added at.
+final class MatArena implements AutoCloseable {
+    private final ArrayList<Mat> mats = new ArrayList<>();
+    private String site;
+
+    <T extends Mat> T add(T mat) {
+        if (site == null) site = MatTracker.callerSite();
+        mats.add(MatTracker.track(mat, site));
+        return mat;
+    }
+
+    // Adds every Mat in the list, e.g. the contours filled in by findContours
+    <T extends Mat> List<T> addAll(List<T> list) {
+        for (T mat : list) add(mat);
+        return list;
+    }
+
+    // Releases the Mats in reverse order of adding them
+    @Override
+    public void close() {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            Mat mat = mats.get(i);
+            MatTracker.untrack(mat);
+            mat.release();
+        }
+        mats.clear();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.doc_scan;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+
+// Encodes Mats straight to JPEG or PNG with OpenCV, without the round trip through an ARGB
+// Bitmap. Gray and thresholded images are written with a single channel, a third of the pixel
+// data of a color image. PNG suits the thresholded images: lossless and small for two colors.
+final class MatEncoder {
+    // Well above what OCR and the result screen can tell apart, far smaller than 100
+    static final int DEFAULT_JPEG_QUALITY = 90;
+    private static final int PNG_COMPRESSION = 3;
+
+    enum Format {
+        JPEG(".jpg"),
+        PNG(".png");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private MatEncoder() {}
+
+    // Writes 'image' to 'file'. A single channel image stays single channel, an RGBA image, as
+    // decoded for display, is written as color. 'jpegQuality' (0-100) is ignored for PNG.
+    static File write(Mat image, Format format, int jpegQuality, File file) throws IOException {
+        try (MatArena arena = new MatArena()) {
+            MatOfInt params = arena.add(params(format, jpegQuality));
+            if (!Imgcodecs.imwrite(file.getAbsolutePath(), encodable(image, arena), params)) {
+                throw new IOException("Could not write " + file.getName());
+            }
+        }
+        return file;
+    }
+
+    private static MatOfInt params(Format format, int jpegQuality) {
+        return format == Format.JPEG
+                ? new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, jpegQuality)
+                : new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, PNG_COMPRESSION);
+    }
+
+    // OpenCV writes gray or BGR, the app decodes to RGBA
+    private static Mat encodable(Mat image, MatArena arena) {
+        if (image.type() == CvType.CV_8UC4) {
+            Mat bgr = arena.add(new Mat());
+            Imgproc.cvtColor(image, bgr, Imgproc.COLOR_RGBA2BGR);
+            return bgr;
+        }
+        return image;
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.doc_scan;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Counts the live native Mats and their bytes per allocation site, in debug builds only. A Mat
+// is registered with track(), or by adding it to a MatArena or SharedMat, and counts as live
+// until it is released, wherever that happens, as long as it holds data. Comparing a snapshot
+// taken at the start of a scan with the state at its end shows which sites leak.
+//
+// Taking the site costs a stack trace. A MatArena takes it once, for its first Mat, and counts
+// all of its Mats there, so the per frame arenas don't take one per contour.
+//
+// The Mats are only weakly referenced, so tracking doesn't keep an unreleased Mat from being
+// collected and finalized, as it would be in a release build.
+final class MatTracker {
+    private static final String TAG = "DocScanner::MatTracker";
+    private static final boolean ENABLED = BuildConfig.DEBUG;
+
+    // Tracked Mats by identity hash code. Released and collected Mats are dropped when a
+    // snapshot is taken, collected ones also when the next Mat is tracked.
+    private static final HashMap<Integer, List<TrackedMat>> tracked = new HashMap<>();
+    private static final ReferenceQueue<Mat> collected = new ReferenceQueue<>();
+
+    // A weak reference to a tracked Mat and where it was tracked
+    private static final class TrackedMat extends WeakReference<Mat> {
+        final int identity;
+        final String site;
+
+        TrackedMat(Mat mat, String site) {
+            super(mat, collected);
+            this.identity = System.identityHashCode(mat);
+            this.site = site;
+        }
+    }
+
+    private MatTracker() {}
+
+    // The live Mats and their bytes per allocation site at one moment
+    static final class Snapshot {
+        private final Map<String, long[]> perSite;
+
+        private Snapshot(Map<String, long[]> perSite) {
+            this.perSite = perSite;
+        }
+
+        long count(String site) {
+            long[] values = perSite.get(site);
+            return values != null ? values[0] : 0;
+        }
+
+        long bytes(String site) {
+            long[] values = perSite.get(site);
+            return values != null ? values[1] : 0;
+        }
+    }
+
+    static <T extends Mat> T track(T mat) {
+        if (!ENABLED) return mat;
+        return track(mat, callerSite());
+    }
+
+    // Tracks 'mat' at a site taken earlier with callerSite()
+    static <T extends Mat> T track(T mat, String site) {
+        if (!ENABLED) return mat;
+
+        TrackedMat entry = new TrackedMat(mat, site);
+        synchronized (tracked) {
+            dropCollected();
+            List<TrackedMat> entries = tracked.get(entry.identity);
+            if (entries == null) {
+                entries = new ArrayList<>(1);
+                tracked.put(entry.identity, entries);
+            }
+            entries.add(entry);
+        }
+        return mat;
+    }
+
+    // Forgets a Mat that is being released, so per frame Mats don't pile up until the next
+    // snapshot
+    static void untrack(Mat mat) {
+        if (!ENABLED) return;
+
+        int identity = System.identityHashCode(mat);
+        synchronized (tracked) {
+            List<TrackedMat> entries = tracked.get(identity);
+            if (entries == null) return;
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i).get() == mat) entries.remove(i);
+            }
+            if (entries.isEmpty()) tracked.remove(identity);
+        }
+    }
+
+    static Snapshot snapshot() {
+        Map<String, long[]> perSite = new HashMap<>();
+        if (!ENABLED) return new Snapshot(perSite);
+
+        synchronized (tracked) {
+            dropCollected();
+            Iterator<List<TrackedMat>> lists = tracked.values().iterator();
+            while (lists.hasNext()) {
+                List<TrackedMat> entries = lists.next();
+                Iterator<TrackedMat> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    TrackedMat entry = iterator.next();
+                    Mat mat = entry.get();
+                    // A released Mat has no data anymore
+                    if (mat == null || mat.empty()) {
+                        iterator.remove();
+                        continue;
+                    }
+
+                    long[] values = perSite.get(entry.site);
+                    if (values == null) {
+                        values = new long[2];
+                        perSite.put(entry.site, values);
+                    }
+                    values[0]++;
+                    values[1] += mat.total() * mat.elemSize();
+                }
+                if (entries.isEmpty()) lists.remove();
+            }
+        }
+        return new Snapshot(perSite);
+    }
+
+    // Removes the entries of collected Mats. Called with the lock on 'tracked' held.
+    private static void dropCollected() {
+        TrackedMat entry;
+        while ((entry = (TrackedMat) collected.poll()) != null) {
+            List<TrackedMat> entries = tracked.get(entry.identity);
+            if (entries == null) continue;
+            entries.remove(entry);
+            if (entries.isEmpty()) tracked.remove(entry.identity);
+        }
+    }
+
+    // Logs every site that has more live Mats or bytes than in 'before'
+    static void logGrowth(String label, Snapshot before) {
+        if (!ENABLED) return;
+
+        Snapshot after = snapshot();
+        List<String> grownSites = new ArrayList<>();
+        for (String site : after.perSite.keySet()) {
+            if (after.count(site) > before.count(site) || after.bytes(site) > before.bytes(site)) {
+                grownSites.add(site);
+            }
+        }
+
+        if (grownSites.isEmpty()) {
+            Log.d(TAG, label + ": no live Mats were added");
+            return;
+        }
+
+        Collections.sort(grownSites);
+        for (String site : grownSites) {
+            Log.w(TAG, label + ": " + site + " +" + (after.count(site) - before.count(site)) + " Mats, +"
+                    + (after.bytes(site) - before.bytes(site)) + " bytes (" + after.count(site) + " live)");
+        }
+    }
+
+    // The first stack frame outside of the Mat bookkeeping classes. Empty in release builds.
+    static String callerSite() {
+        if (!ENABLED) return "";
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (className.equals(MatTracker.class.getName()) || className.equals(MatArena.class.getName())
+                    || className.equals(SharedMat.class.getName())) {
+                continue;
+            }
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+            return simpleName + "." + element.getMethodName() + ":" + element.getLineNumber();
+        }
+        return "unknown";
+    }
+}
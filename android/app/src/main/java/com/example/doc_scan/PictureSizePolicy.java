@@ -0,0 +1,112 @@
+package com.example.doc_scan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Picks the picture size of a capture: the smallest size the camera supports that still puts
+// enough pixels across the receipt for OCR. How much of the frame the receipt covers comes from
+// the quad detected on the preview. Anything larger only makes decoding, cropping, encoding and
+// returning the capture slower.
+//
+// Only sizes with the aspect ratio of the preview are considered, the detected quad is mapped
+// from the preview to the capture by scaling. The candidates are cached per device, camera and
+// preview size, so the parameters are only parsed on the first capture. The first read of the
+// preferences waits for their file, so they're loaded on the CaptureProcessor while the camera
+// starts. A capture before that computes the candidates without the cache.
+class PictureSizePolicy {
+    private static final String TAG = "DocScanner::PictureSize";
+    private static final String PREFERENCES = "picture_sizes";
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    // About 300 dpi across an 80 mm receipt, enough for the smallest print on a receipt
+    static final int TARGET_RECEIPT_WIDTH_PIXELS = 1000;
+    // The share of the short frame side the receipt is assumed to cover without a detected quad
+    private static final double DEFAULT_RECEIPT_SHARE = 0.4;
+    private static final double ASPECT_RATIO_TOLERANCE = 0.01;
+
+    // Set on the main thread once loaded, null until then
+    private SharedPreferences preferences;
+
+    PictureSizePolicy(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        CaptureProcessor.get().submit(() -> load(applicationContext), loaded -> preferences = loaded);
+    }
+
+    private static SharedPreferences load(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        // Another system version can support other sizes
+        if (!Build.FINGERPRINT.equals(preferences.getString(FINGERPRINT_KEY, null))) {
+            preferences.edit().clear().putString(FINGERPRINT_KEY, Build.FINGERPRINT).apply();
+        }
+        return preferences;
+    }
+
+    // The picture size for a receipt that is 'receiptWidth' preview pixels wide, or 0 or less if
+    // no receipt was detected. Returns null if the camera has no size with the preview's aspect
+    // ratio.
+    int[] choose(Camera.Parameters params, int cameraIndex, double receiptWidth) {
+        Camera.Size previewSize = params.getPreviewSize();
+        List<int[]> candidates = candidates(params, cameraIndex, previewSize.width, previewSize.height);
+        if (candidates.isEmpty()) return null;
+
+        double previewShortSide = Math.min(previewSize.width, previewSize.height);
+        double share = receiptWidth > 0 ? Math.min(1, receiptWidth / previewShortSide) : DEFAULT_RECEIPT_SHARE;
+        double requiredShortSide = TARGET_RECEIPT_WIDTH_PIXELS / share;
+
+        for (int[] size : candidates) {
+            if (Math.min(size[0], size[1]) >= requiredShortSide) return size;
+        }
+        // Even the largest size is below the target, it comes closest
+        return candidates.get(candidates.size() - 1);
+    }
+
+    // The supported sizes with the aspect ratio of the preview, smallest first
+    private List<int[]> candidates(Camera.Parameters params, int cameraIndex, int previewWidth, int previewHeight) {
+        String key = cameraIndex + ":" + previewWidth + "x" + previewHeight;
+        String cached = preferences != null ? preferences.getString(key, null) : null;
+        if (cached != null) return parse(cached);
+
+        double previewAspectRatio = (double) previewWidth / previewHeight;
+        List<int[]> candidates = new ArrayList<>();
+        for (Camera.Size size : params.getSupportedPictureSizes()) {
+            double aspectRatio = (double) size.width / size.height;
+            if (Math.abs(aspectRatio - previewAspectRatio) <= previewAspectRatio * ASPECT_RATIO_TOLERANCE) {
+                candidates.add(new int[] { size.width, size.height });
+            }
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare((long) a[0] * a[1], (long) b[0] * b[1]));
+        if (candidates.isEmpty()) Log.w(TAG, "No picture size with the aspect ratio of " + previewWidth + "x" + previewHeight);
+
+        if (preferences != null) preferences.edit().putString(key, format(candidates)).apply();
+        return candidates;
+    }
+
+    private static String format(List<int[]> sizes) {
+        StringBuilder builder = new StringBuilder();
+        for (int[] size : sizes) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(size[0]).append('x').append(size[1]);
+        }
+        return builder.toString();
+    }
+
+    private static List<int[]> parse(String sizes) {
+        List<int[]> parsed = new ArrayList<>();
+        if (sizes.isEmpty()) return parsed;
+        for (String size : sizes.split(",")) {
+            int separator = size.indexOf('x');
+            parsed.add(new int[] {
+                    Integer.parseInt(size.substring(0, separator)),
+                    Integer.parseInt(size.substring(separator + 1))
+            });
+        }
+        return parsed;
+    }
+}
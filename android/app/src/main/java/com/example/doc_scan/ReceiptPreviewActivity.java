@@ -2,89 +2,138 @@ package com.example.doc_scan;
 
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.Rect;
 import android.os.Bundle;
-import android.util.Base64;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.ProgressBar;
+import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.exifinterface.media.ExifInterface;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.doc_scan.model.ScanResult;
-import com.example.doc_scan.model.VisionResult;
 import com.github.chrisbanes.photoview.PhotoView;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.firebase.ml.vision.FirebaseVision;
-import com.google.firebase.ml.vision.common.FirebaseVisionImage;
-import com.google.firebase.ml.vision.text.FirebaseVisionText;
-import com.google.firebase.ml.vision.text.FirebaseVisionTextRecognizer;
 import com.google.gson.Gson;
 
 import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public class ReceiptPreviewActivity extends AppCompatActivity  {
     private static final String TAG = "DocScanner::Preview";
-
-    public static Mat croppedGrayImage;
-    public static Mat croppedThresholdedImage;
-    public static Boolean shouldShowThresholded;
-    public static Mat originalImage;
-
+    // The directory in the cache the result images are written to
+    private static final String RESULT_DIRECTORY = "scan_results";
+    private static final int RESULT_JPEG_QUALITY = MatEncoder.DEFAULT_JPEG_QUALITY;
+
+    // The scan this preview belongs to and the crops it shows. The crops are retained until the
+    // activity is destroyed. The thresholded one is only computed once the corners are
+    // confirmed, it's loaded in the background when the preview opens.
+    private ScanSession session;
+    private SharedMat croppedGrayImage;
+    private SharedMat croppedThresholdedImage;
+    private CaptureProcessor.Job<SharedMat> thresholdedImageJob;
+    private boolean shouldShowThresholded;
+    private boolean submitWhenThresholded = false;
+
+    // The result files are written in the background, the original while the preview is shown
+    // and the crop and the OCR results after submitting. The result is returned once all three
+    // are written.
+    private CaptureProcessor.Job<File> originalImageJob;
+    private CaptureProcessor.Job<File> croppedImageJob;
+    private CaptureProcessor.Job<File> visionResultJob;
+    // Stitching the crop to the earlier sections of a long receipt
+    private CaptureProcessor.Job<Boolean> addSectionJob;
+    private CaptureProcessor.Job<SharedMat> stitchedImageJob;
+    private File originalImageFile;
+    private File croppedImageFile;
+    private File visionResultFile;
+    private boolean submitted = false;
+    private boolean resultFailed = false;
+    private boolean resultReturned = false;
+
+    PhotoView croppedImageView;
     ImageButton submitReceiptImage;
     ImageButton enableDisableFilterButton;
     ImageButton prevButton;
+    ImageButton addSectionButton;
+    ProgressBar progressBar;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_receipt_preview_activity);
 
+        session = ScanSession.current();
+        if (session == null || !session.hasCroppedReceipt()) {
+            finish();
+            return;
+        }
+        croppedGrayImage = session.acquireCroppedGray();
+        shouldShowThresholded = session.shouldShowThresholded();
+
         // Get the views
-        PhotoView croppedImageView = findViewById(R.id.cropped_preview_image);
+        croppedImageView = findViewById(R.id.cropped_preview_image);
 
         submitReceiptImage = findViewById(R.id.submit_receipt_button);
         enableDisableFilterButton = findViewById(R.id.enable_disable_filter_button);
         prevButton = findViewById(R.id.back_to_crop_button);
-        ProgressBar progressBar = findViewById(R.id.scan_processing_progress_bar);
+        addSectionButton = findViewById(R.id.add_section_button);
+        addSectionButton.setVisibility(session.multiCapture ? View.VISIBLE : View.GONE);
+        progressBar = findViewById(R.id.scan_processing_progress_bar);
         progressBar.setVisibility(View.GONE);
 
         // Present the cropped receipt image
         this.setPreviewImage(croppedImageView, enableDisableFilterButton);
+        loadThresholdedImage();
+        writeOriginalImage();
 
         submitReceiptImage.setOnClickListener((View v) -> {
+            if (submitted) return;
+            submitted = true;
             progressBar.setVisibility(View.VISIBLE);
+            if (resultFailed) {
+                failResult();
+                return;
+            }
 
-            Mat selectedImage = shouldShowThresholded ? croppedThresholdedImage : croppedGrayImage;
-
-            Bitmap croppedBitmap = matToBitmap(selectedImage);
-            FirebaseVisionImage image = FirebaseVisionImage.fromBitmap(croppedBitmap);
-            FirebaseVisionTextRecognizer detector = FirebaseVision.getInstance().getOnDeviceTextRecognizer();
-            detector.processImage(image)
-                .addOnSuccessListener(new OnSuccessListener<FirebaseVisionText>() {
-                    @Override
-                    public void onSuccess(FirebaseVisionText result) {
-                        // Task completed successfully
-                        VisionResult visionResults = processVisionResults(result, croppedBitmap);
-
-                        Bitmap originalBitmap = matToBitmap(originalImage);
-                        String jsonString = getJsonResults(originalBitmap, croppedBitmap, visionResults);
-                        returnToFlutterWithResultString(jsonString);
-                    }
-                })
-                .addOnFailureListener(new OnFailureListener() {
-                    @Override
-                    public void onFailure(@NonNull Exception e) {
-                        returnToFlutterWithResultString("scanFailed");
+            if (session.stitchedSectionCount() > 0) {
+                // The earlier sections of a long receipt are stitched to this crop first
+                boolean thresholded = shouldShowThresholded;
+                stitchedImageJob = CaptureProcessor.get().submit(() -> stitchedImage(thresholded), stitchedImage -> {
+                    stitchedImageJob = null;
+                    if (stitchedImage == null) {
+                        failResult();
+                    } else {
+                        submitReceipt(stitchedImage, thresholded);
                     }
-                });
+                }, SharedMat::release);
+                return;
+            }
+
+            submitSelectedImage();
+        });
+
+        addSectionButton.setOnClickListener((View view) -> {
+            if (addSectionJob != null) return;
+            progressBar.setVisibility(View.VISIBLE);
+            addSectionJob = CaptureProcessor.get().submit(() -> session.addCropToStitch(getCacheDir()), overlapping -> {
+                addSectionJob = null;
+                progressBar.setVisibility(View.GONE);
+                if (overlapping == null) {
+                    Toast.makeText(this, "Could not add this section", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                if (!overlapping) {
+                    Toast.makeText(this, "No overlap with the previous section found", Toast.LENGTH_SHORT).show();
+                }
+                returnToCameraForNextSection();
+            });
         });
 
         enableDisableFilterButton.setOnClickListener((View view) -> {
@@ -97,23 +146,197 @@ public class ReceiptPreviewActivity extends AppCompatActivity  {
         });
     }
 
+    // The original is the camera's JPEG as it is, without a decode and a lossy re-encode. It's
+    // in sensor orientation, its EXIF orientation is turned by the sensor's rotation so viewers
+    // show it upright. It doesn't depend on anything chosen on this screen, so it's written as
+    // soon as the preview opens.
+    private void writeOriginalImage() {
+        byte[] originalJpegData = session.jpegData;
+        int rotation = session.jpegRotation;
+        File file = resultFile("original.jpg");
+        originalImageJob = CaptureProcessor.get().submit(() -> {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(originalJpegData);
+            }
+            // Only rewrites the metadata, the compressed image data is copied as is
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            // Added to an orientation the camera wrote, rotate() keeps a flip. It would turn an
+            // undefined orientation into another undefined one.
+            if (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)
+                    == ExifInterface.ORIENTATION_UNDEFINED) {
+                exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_NORMAL));
+            }
+            exif.rotate(rotation);
+            exif.saveAttributes();
+            return file;
+        }, written -> {
+            originalImageJob = null;
+            originalImageFile = written;
+            onResultFileWritten(written);
+        });
+    }
+
+    // Submits the crop that is shown. If the thresholded crop is still being recomputed, it's
+    // submitted once it's ready.
+    private void submitSelectedImage() {
+        if (shouldShowThresholded && croppedThresholdedImage == null) {
+            submitWhenThresholded = true;
+            loadThresholdedImage();
+            return;
+        }
+        SharedMat selectedImage = shouldShowThresholded ? croppedThresholdedImage : croppedGrayImage;
+        submitReceipt(selectedImage.retain(), shouldShowThresholded);
+    }
+
+    // Encodes the chosen image in the background while OCR runs on it. The encoding releases
+    // 'image'. A thresholded image is written as PNG, a gray one as single channel JPEG.
+    private void submitReceipt(SharedMat image, boolean thresholded) {
+        Bitmap croppedBitmap = matToBitmap(image.get());
+        MatEncoder.Format format = thresholded ? MatEncoder.Format.PNG : MatEncoder.Format.JPEG;
+        File file = resultFile("cropped" + format.extension);
+        croppedImageJob = CaptureProcessor.get().submit(() -> {
+            try {
+                return MatEncoder.write(image.get(), format, RESULT_JPEG_QUALITY, file);
+            } finally {
+                image.release();
+            }
+        }, written -> {
+            croppedImageJob = null;
+            croppedImageFile = written;
+            onResultFileWritten(written);
+        });
+        recognizeText(croppedBitmap);
+    }
+
+    // Runs OCR on the receipt image, in strips if it's tall, and writes the results
+    private void recognizeText(Bitmap croppedBitmap) {
+        StripRecognizer.recognize(croppedBitmap, visionResults -> {
+            if (visionResults == null) {
+                failResult();
+                return;
+            }
+
+            File file = resultFile("vision_result.bin");
+            visionResultJob = CaptureProcessor.get().submit(() -> {
+                try (OutputStream out = new FileOutputStream(file)) {
+                    out.write(visionResults.encode());
+                }
+                return file;
+            }, written -> {
+                visionResultJob = null;
+                visionResultFile = written;
+                onResultFileWritten(written);
+            });
+        });
+    }
+
+    // 'written' is null if writing the file failed
+    private void onResultFileWritten(File written) {
+        if (written == null) {
+            failResult();
+            return;
+        }
+        if (!submitted || resultReturned) return;
+        if (originalImageFile == null || croppedImageFile == null || visionResultFile == null) return;
+
+        resultReturned = true;
+        returnToFlutterWithResultString(getJsonResults());
+    }
+
+    // The scan fails once it was submitted, a failure before that is reported on submit
+    private void failResult() {
+        resultFailed = true;
+        if (!submitted || resultReturned) return;
+
+        resultReturned = true;
+        returnToFlutterWithResultString("scanFailed");
+    }
+
+    // The stitched receipt, thresholded with the method of the scan if 'thresholded'. Runs on
+    // the CaptureProcessor.
+    private SharedMat stitchedImage(boolean thresholded) throws IOException, InterruptedException {
+        Mat stitched = session.finishStitch();
+        if (stitched == null) return null;
+        if (thresholded) {
+            Mat threshold = CroppedReceipt.threshold(stitched, session.binarization);
+            stitched.release();
+            stitched = threshold;
+        }
+        return new SharedMat(stitched);
+    }
+
+    // The camera is below this screen and the crop screen, the next section is taken there
+    private void returnToCameraForNextSection() {
+        Intent i = new Intent(ReceiptPreviewActivity.this, CameraView.class);
+        i.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        startActivity(i);
+        finish();
+    }
+
     private void setPreviewImage(PhotoView imageView, ImageButton filterButton) {
         if (imageView == null || filterButton == null) return;
 
         if (shouldShowThresholded) {
+            // Otherwise it's shown once it's loaded
             if (croppedThresholdedImage != null) {
-                presentImageMat(croppedThresholdedImage, imageView);
-                filterButton.setImageResource(R.drawable.no_filter);
+                presentImageMat(croppedThresholdedImage.get(), imageView);
+            } else {
+                progressBar.setVisibility(View.VISIBLE);
+                loadThresholdedImage();
             }
+            filterButton.setImageResource(R.drawable.no_filter);
         } else {
-            if (croppedGrayImage != null) {
-                presentImageMat(croppedGrayImage, imageView);
-                filterButton.setImageResource(R.drawable.photo_filter);
-            }
+            presentImageMat(croppedGrayImage.get(), imageView);
+            filterButton.setImageResource(R.drawable.photo_filter);
         }
     }
 
+    // Gets the thresholded crop from the session in the background, it may have to be
+    // computed. Then shows it if it was chosen, or submits it if the receipt was submitted
+    // meanwhile.
+    private void loadThresholdedImage() {
+        if (thresholdedImageJob != null || croppedThresholdedImage != null) return;
+        thresholdedImageJob = CaptureProcessor.get().submit(session::acquireCroppedThreshold, threshold -> {
+            thresholdedImageJob = null;
+            boolean waiting = shouldShowThresholded;
+            if (threshold != null) {
+                croppedThresholdedImage = threshold;
+            } else {
+                Log.w(TAG, "No thresholded crop, using the gray one");
+                shouldShowThresholded = false;
+            }
+
+            if (submitWhenThresholded) {
+                submitWhenThresholded = false;
+                submitSelectedImage();
+            } else if (waiting && !submitted) {
+                progressBar.setVisibility(View.GONE);
+                setPreviewImage(croppedImageView, enableDisableFilterButton);
+            }
+        }, SharedMat::release);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (originalImageJob != null) originalImageJob.cancel();
+        if (croppedImageJob != null) croppedImageJob.cancel();
+        if (visionResultJob != null) visionResultJob.cancel();
+        if (thresholdedImageJob != null) thresholdedImageJob.cancel();
+        // The stitched image is released by the job's disposer
+        if (addSectionJob != null) addSectionJob.cancel();
+        if (stitchedImageJob != null) stitchedImageJob.cancel();
+
+        // Nulled, so a second call can't release them twice
+        if (croppedGrayImage != null) croppedGrayImage.release();
+        if (croppedThresholdedImage != null) croppedThresholdedImage.release();
+        croppedGrayImage = null;
+        croppedThresholdedImage = null;
+    }
+
     private void returnToFlutterWithResultString(String results) {
+        ScanSession.end();
+
         Intent intent = new Intent("text-processing-finished");
         intent.putExtra("message", results);
         LocalBroadcastManager.getInstance(ReceiptPreviewActivity.this).sendBroadcast(intent);
@@ -137,50 +360,21 @@ public class ReceiptPreviewActivity extends AppCompatActivity  {
     }
 
 
-    private String getJsonResults(Bitmap originalBitmap, Bitmap croppedBitmap, VisionResult visionResults) {
-        String croppedImageBase64 = encodeBitmapBase64(croppedBitmap);
-        String originalImageBase64 = encodeBitmapBase64(originalBitmap);
-
+    // The paths of the written result files as JSON. The files are overwritten by the next scan,
+    // Flutter reads them right away.
+    private String getJsonResults() {
         Gson gson = new Gson();
-        ScanResult scanResult = new ScanResult(visionResults, originalImageBase64, croppedImageBase64);
+        ScanResult scanResult = new ScanResult(visionResultFile.getAbsolutePath(),
+                originalImageFile.getAbsolutePath(), croppedImageFile.getAbsolutePath());
         return gson.toJson(scanResult);
     }
 
-    private String encodeBitmapBase64(Bitmap image) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        image.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-        byte[] byteArrayImage = baos.toByteArray();
-        return android.util.Base64.encodeToString(byteArrayImage, Base64.NO_WRAP);
-    }
-
-    private VisionResult processVisionResults(FirebaseVisionText results, Bitmap sourceImage) {
-        ArrayList<VisionResult.TextObservation> textObservations = new ArrayList<VisionResult.TextObservation>();
-        double imageWidth = sourceImage.getWidth();
-        double imageHeight = sourceImage.getHeight();
-
-
-        for (FirebaseVisionText.TextBlock block : results.getTextBlocks()) {
-            for (FirebaseVisionText.Line line : block.getLines()) {
-                Rect boundingBox = line.getBoundingBox();
-                String text = line.getText();
-
-//                Log.i(TAG, line.getCornerPoints());
-
-
-                VisionResult.Rect normalizedBoundingBox = normalizeRect(boundingBox, imageWidth, imageHeight);
-                VisionResult.TextObservation obs = new VisionResult.TextObservation(text, -1.0, normalizedBoundingBox);
-                textObservations.add(obs);
-            }
+    // A file in the result directory of the cache
+    private File resultFile(String name) {
+        File resultDirectory = new File(getCacheDir(), RESULT_DIRECTORY);
+        if (!resultDirectory.isDirectory() && !resultDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + resultDirectory);
         }
-
-        return new VisionResult(imageWidth, imageHeight, textObservations);
-    }
-
-    private VisionResult.Rect normalizeRect(Rect sourceRect, double spaceWidth, double spaceHeight) {
-        double newLeft = ((double) sourceRect.left / spaceWidth);
-        double newTop = ((double) sourceRect.top / spaceHeight);
-        double newRight = ((double) sourceRect.right / spaceWidth);
-        double newBottom = ((double) sourceRect.bottom / spaceHeight);
-        return new VisionResult.Rect(newLeft, newRight, newTop, newBottom);
+        return new File(resultDirectory, name);
     }
 }
@@ -0,0 +1,265 @@
+package com.example.doc_scan;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+import org.opencv.features2d.BFMatcher;
+import org.opencv.features2d.ORB;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Stitches the gray crops of a long receipt, photographed top to bottom in several captures, into
+// one strip. Consecutive crops are expected to overlap: the top of a crop repeats the bottom of
+// the previous one. The overlap is found by matching ORB features between the two.
+//
+// Only the bottom of the last crop, the seam, stays in memory. Every row above it is final and
+// is appended to 'stripFile', so a receipt of any length costs one seam of memory until
+// finish() reads the strip back. That strip is then thresholded and turned into an ARGB Bitmap
+// for OCR, about 6 bytes per pixel in all, so finish() scales a strip above MAX_STRIP_PIXELS
+// down to that, e.g. to 8000 rows at a width of 1000 pixels.
+class ReceiptStitcher {
+    private static final String TAG = "DocScanner::Stitcher";
+
+    // The seam is this many times the strip width high, the overlap must fit in it
+    private static final double SEAM_HEIGHT_FACTOR = 0.75;
+    private static final int MAX_FEATURES = 800;
+    // Matches of a real overlap agree on the vertical shift within this many pixels and are
+    // barely shifted sideways, the crops have the same width
+    private static final int SHIFT_TOLERANCE = 3;
+    private static final double MAX_SIDEWAYS_SHIFT_FRACTION = 0.05;
+    private static final int MIN_AGREEING_MATCHES = 12;
+    private static final long MAX_STRIP_PIXELS = 8_000_000;
+    // A strip that is scaled down is read back this many rows at a time
+    private static final int BAND_ROWS = 512;
+
+    private final File stripFile;
+    private OutputStream strip;
+    private int width = 0;
+    private int writtenRows = 0;
+    // Read by the session without the stitcher's lock
+    private volatile int segmentCount = 0;
+    private Mat seam;
+    // Created on the first overlap and reused for every following one
+    private ORB orb;
+    private BFMatcher matcher;
+
+    ReceiptStitcher(File stripFile) {
+        this.stripFile = stripFile;
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    // Adds the next crop below the strip. The crop is scaled to the width of the first one.
+    // Returns false if no overlap was found, the crop is then appended as is.
+    synchronized boolean append(Mat crop) throws IOException {
+        if (strip == null) strip = new BufferedOutputStream(new FileOutputStream(stripFile));
+
+        boolean overlapping = true;
+        try (MatArena arena = new MatArena()) {
+            Mat segment = crop;
+            if (width == 0) {
+                width = crop.cols();
+            } else if (crop.cols() != width) {
+                segment = arena.add(new Mat());
+                double scale = (double) width / crop.cols();
+                Imgproc.resize(crop, segment, new Size(width, Math.max(1, Math.round(crop.rows() * scale))), 0, 0,
+                        scale < 1 ? Imgproc.INTER_AREA : Imgproc.INTER_LINEAR);
+            }
+
+            // The segment starts at the row of the seam it continues from, or below the seam if
+            // there is no overlap
+            if (seam != null) {
+                int shift = findOverlapShift(seam, segment);
+                overlapping = shift >= 0;
+                writeRows(seam, 0, overlapping ? shift : seam.rows());
+                seam.release();
+                seam = null;
+                if (!overlapping) Log.w(TAG, "No overlap with the previous capture, appending it below");
+            }
+
+            int seamHeight = Math.min(segment.rows(), (int) Math.round(width * SEAM_HEIGHT_FACTOR));
+            int seamTop = segment.rows() - seamHeight;
+            writeRows(segment, 0, seamTop);
+            seam = segment.submat(seamTop, segment.rows(), 0, width).clone();
+        }
+        segmentCount++;
+        return overlapping;
+    }
+
+    // Writes the seam and returns the whole strip, a single channel 8 bit Mat, scaled down to
+    // MAX_STRIP_PIXELS if it's larger. The caller releases it. The stitcher can not be appended
+    // to anymore.
+    synchronized Mat finish() throws IOException {
+        if (seam != null) {
+            writeRows(seam, 0, seam.rows());
+            seam.release();
+            seam = null;
+        }
+        if (strip != null) {
+            strip.close();
+            strip = null;
+        }
+        if (writtenRows == 0) return null;
+
+        long pixels = (long) width * writtenRows;
+        if (pixels > MAX_STRIP_PIXELS) return readScaled(Math.sqrt((double) MAX_STRIP_PIXELS / pixels));
+
+        byte[] row = new byte[width];
+        Mat stitched = new Mat(writtenRows, width, CvType.CV_8UC1);
+        try (InputStream in = new FileInputStream(stripFile)) {
+            for (int y = 0; y < writtenRows; y++) {
+                readFully(in, row);
+                stitched.put(y, 0, row);
+            }
+        }
+        return stitched;
+    }
+
+    // Reads the strip back band by band, scaling every band into its rows of the result, so
+    // only one band of the full size is in memory
+    private Mat readScaled(double scale) throws IOException {
+        int scaledWidth = Math.max(1, (int) Math.round(width * scale));
+        int scaledRows = Math.max(1, (int) Math.round(writtenRows * scale));
+        Log.w(TAG, "The strip of " + width + "x" + writtenRows + " is scaled down to " + scaledWidth + "x" + scaledRows);
+
+        byte[] bandData = new byte[BAND_ROWS * width];
+        Mat stitched = new Mat(scaledRows, scaledWidth, CvType.CV_8UC1);
+        try (InputStream in = new FileInputStream(stripFile); MatArena arena = new MatArena()) {
+            Mat band = arena.add(new Mat(BAND_ROWS, width, CvType.CV_8UC1));
+            for (int top = 0; top < writtenRows; top += BAND_ROWS) {
+                int bottom = Math.min(top + BAND_ROWS, writtenRows);
+                readFully(in, bandData, (bottom - top) * width);
+                band.put(0, 0, bandData);
+
+                int scaledTop = (int) Math.round(top * scale);
+                int scaledBottom = Math.min(scaledRows, (int) Math.round(bottom * scale));
+                if (scaledBottom <= scaledTop) continue;
+                Mat source = arena.add(band.submat(0, bottom - top, 0, width));
+                Mat target = arena.add(stitched.submat(scaledTop, scaledBottom, 0, scaledWidth));
+                Imgproc.resize(source, target, target.size(), 0, 0, Imgproc.INTER_AREA);
+            }
+        } catch (IOException | RuntimeException e) {
+            stitched.release();
+            throw e;
+        }
+        return stitched;
+    }
+
+    // Drops the seam and the strip
+    synchronized void release() {
+        if (seam != null) {
+            seam.release();
+            seam = null;
+        }
+        if (strip != null) {
+            try {
+                strip.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the strip", e);
+            }
+            strip = null;
+        }
+        // Their native objects are freed by their finalizers
+        orb = null;
+        matcher = null;
+        if (stripFile.exists() && !stripFile.delete()) Log.w(TAG, "Could not delete " + stripFile);
+    }
+
+    // The row of 'seam' that the top of 'segment' repeats, or -1 if the two don't overlap.
+    // Every match votes for a shift, the median is taken if enough matches agree with it.
+    private int findOverlapShift(Mat seam, Mat segment) {
+        if (orb == null) {
+            orb = ORB.create();
+            orb.setMaxFeatures(MAX_FEATURES);
+            matcher = BFMatcher.create(Core.NORM_HAMMING, true);
+        }
+
+        try (MatArena arena = new MatArena()) {
+            // Only the top of the segment can repeat the seam
+            Mat segmentTop = arena.add(segment.submat(0, Math.min(segment.rows(), seam.rows()), 0, segment.cols()));
+
+            MatOfKeyPoint seamKeyPoints = arena.add(new MatOfKeyPoint());
+            MatOfKeyPoint segmentKeyPoints = arena.add(new MatOfKeyPoint());
+            Mat seamDescriptors = arena.add(new Mat());
+            Mat segmentDescriptors = arena.add(new Mat());
+            Mat noMask = arena.add(new Mat());
+            orb.detectAndCompute(seam, noMask, seamKeyPoints, seamDescriptors);
+            orb.detectAndCompute(segmentTop, noMask, segmentKeyPoints, segmentDescriptors);
+            if (seamDescriptors.empty() || segmentDescriptors.empty()) return -1;
+
+            MatOfDMatch matches = arena.add(new MatOfDMatch());
+            matcher.match(seamDescriptors, segmentDescriptors, matches);
+
+            KeyPoint[] seamPoints = seamKeyPoints.toArray();
+            KeyPoint[] segmentPoints = segmentKeyPoints.toArray();
+            double maxSidewaysShift = seam.cols() * MAX_SIDEWAYS_SHIFT_FRACTION;
+
+            DMatch[] matchArray = matches.toArray();
+            int[] shifts = new int[matchArray.length];
+            int count = 0;
+            for (DMatch match : matchArray) {
+                KeyPoint seamPoint = seamPoints[match.queryIdx];
+                KeyPoint segmentPoint = segmentPoints[match.trainIdx];
+                if (Math.abs(seamPoint.pt.x - segmentPoint.pt.x) > maxSidewaysShift) continue;
+                int shift = (int) Math.round(seamPoint.pt.y - segmentPoint.pt.y);
+                if (shift >= 0 && shift < seam.rows()) shifts[count++] = shift;
+            }
+            if (count < MIN_AGREEING_MATCHES) return -1;
+
+            Arrays.sort(shifts, 0, count);
+            int median = shifts[count / 2];
+            int agreeing = 0;
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                if (Math.abs(shifts[i] - median) <= SHIFT_TOLERANCE) {
+                    agreeing++;
+                    sum += shifts[i];
+                }
+            }
+            if (agreeing < MIN_AGREEING_MATCHES) return -1;
+
+            int shift = (int) Math.round((double) sum / agreeing);
+            Log.i(TAG, "Overlap of " + (seam.rows() - shift) + " rows, " + agreeing + " of " + matchArray.length + " matches agree");
+            return shift;
+        }
+    }
+
+    private void writeRows(Mat image, int from, int to) throws IOException {
+        byte[] row = new byte[width];
+        for (int y = from; y < to; y++) {
+            image.get(y, 0, row);
+            strip.write(row);
+        }
+        writtenRows += Math.max(0, to - from);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        readFully(in, buffer, buffer.length);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0) throw new IOException("The strip ended early");
+            offset += read;
+        }
+    }
+}
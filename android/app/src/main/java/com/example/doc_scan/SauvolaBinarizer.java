@@ -0,0 +1,182 @@
+package com.example.doc_scan;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Sauvola's adaptive threshold: a pixel is white when it's brighter than
+//   mean * (1 + k * (stdDev / R - 1))
+// of the window around it. Unlike one global Otsu threshold this follows shadows and uneven
+// light across a receipt.
+//
+// The image is split into tiles that are binarized in parallel. Every tile builds integral
+// images of its area grown by the window radius, so its windows see exactly the pixels they
+// would in one integral image of the whole image. The sums are exact integers, so the output is
+// identical to binarizeSerial(), which SauvolaBinarizerTest checks.
+final class SauvolaBinarizer {
+    static final double DEFAULT_K = 0.34;
+    // Dynamic range of the standard deviation for 8 bit images
+    private static final double R = 128;
+    // The window is this part of the shortest image side, roughly a few text lines
+    private static final int WINDOW_DIVISOR = 24;
+    private static final int MIN_RADIUS = 7;
+    private static final int TILE_SIZE = 256;
+
+    private static ExecutorService executor;
+
+    private SauvolaBinarizer() {}
+
+    // Binarizes a single channel 8 bit Mat with the default window and k, using all cores
+    static Mat binarize(Mat gray) {
+        int width = gray.cols();
+        int height = gray.rows();
+        Mat continuous = gray.isContinuous() ? gray : gray.clone();
+        byte[] pixels = new byte[width * height];
+        continuous.get(0, 0, pixels);
+        if (continuous != gray) continuous.release();
+
+        byte[] binary = binarize(pixels, width, height, radiusFor(width, height), DEFAULT_K,
+                Runtime.getRuntime().availableProcessors());
+
+        Mat result = new Mat(height, width, CvType.CV_8UC1);
+        result.put(0, 0, binary);
+        return result;
+    }
+
+    static int radiusFor(int width, int height) {
+        return Math.max(MIN_RADIUS, Math.min(width, height) / WINDOW_DIVISOR / 2);
+    }
+
+    // Binarizes 'gray' (row-major, one byte per pixel) tile by tile on 'threads' threads. Every
+    // thread reuses one set of integral image buffers for all of its tiles.
+    static byte[] binarize(byte[] gray, int width, int height, int radius, double k, int threads) {
+        byte[] binary = new byte[width * height];
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesX * tilesY;
+        int workers = Math.max(1, Math.min(threads, tileCount));
+
+        if (workers == 1) {
+            binarizeTiles(gray, width, height, radius, k, binary, 0, 1, tilesX, tilesY);
+            return binary;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int worker = 0; worker < workers; worker++) {
+            final int first = worker;
+            futures.add(getExecutor().submit(() ->
+                    binarizeTiles(gray, width, height, radius, k, binary, first, workers, tilesX, tilesY)));
+        }
+        try {
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Binarization was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Binarization failed", e.getCause());
+        }
+        return binary;
+    }
+
+    // The reference for the tests: one integral image of the whole image, on the calling thread
+    static byte[] binarizeSerial(byte[] gray, int width, int height, int radius, double k) {
+        byte[] binary = new byte[width * height];
+        int size = (width + 1) * (height + 1);
+        binarizeTile(gray, width, height, radius, k, binary, 0, 0, width, height, new long[size], new long[size]);
+        return binary;
+    }
+
+    // Binarizes tiles first, first + step, first + 2 * step, ...
+    private static void binarizeTiles(byte[] gray, int width, int height, int radius, double k, byte[] binary,
+                                      int first, int step, int tilesX, int tilesY) {
+        int maxSize = (TILE_SIZE + 2 * radius + 1) * (TILE_SIZE + 2 * radius + 1);
+        long[] sums = new long[maxSize];
+        long[] squareSums = new long[maxSize];
+
+        for (int tile = first; tile < tilesX * tilesY; tile += step) {
+            int tileX = (tile % tilesX) * TILE_SIZE;
+            int tileY = (tile / tilesX) * TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, width - tileX);
+            int tileHeight = Math.min(TILE_SIZE, height - tileY);
+            binarizeTile(gray, width, height, radius, k, binary, tileX, tileY, tileWidth, tileHeight, sums, squareSums);
+        }
+    }
+
+    // Binarizes the pixels of one tile. The integral images cover the tile grown by 'radius' on
+    // every side, clipped to the image: entry (y, x) is the sum over the rows above y and the
+    // columns left of x of that area.
+    private static void binarizeTile(byte[] gray, int width, int height, int radius, double k, byte[] binary,
+                                     int tileX, int tileY, int tileWidth, int tileHeight,
+                                     long[] sums, long[] squareSums) {
+        int areaLeft = Math.max(0, tileX - radius);
+        int areaTop = Math.max(0, tileY - radius);
+        int areaRight = Math.min(width, tileX + tileWidth + radius);
+        int areaBottom = Math.min(height, tileY + tileHeight + radius);
+        int areaWidth = areaRight - areaLeft;
+        int areaHeight = areaBottom - areaTop;
+        int stride = areaWidth + 1;
+
+        for (int x = 0; x <= areaWidth; x++) {
+            sums[x] = 0;
+            squareSums[x] = 0;
+        }
+        for (int y = 0; y < areaHeight; y++) {
+            int row = (y + 1) * stride;
+            int above = y * stride;
+            int source = (areaTop + y) * width + areaLeft;
+            long rowSum = 0;
+            long rowSquareSum = 0;
+            sums[row] = 0;
+            squareSums[row] = 0;
+            for (int x = 0; x < areaWidth; x++) {
+                int value = gray[source + x] & 0xFF;
+                rowSum += value;
+                rowSquareSum += value * value;
+                sums[row + x + 1] = sums[above + x + 1] + rowSum;
+                squareSums[row + x + 1] = squareSums[above + x + 1] + rowSquareSum;
+            }
+        }
+
+        for (int y = tileY; y < tileY + tileHeight; y++) {
+            // Window rows, clipped to the image, relative to the area
+            int top = Math.max(0, y - radius) - areaTop;
+            int bottom = Math.min(height - 1, y + radius) - areaTop + 1;
+
+            for (int x = tileX; x < tileX + tileWidth; x++) {
+                int left = Math.max(0, x - radius) - areaLeft;
+                int right = Math.min(width - 1, x + radius) - areaLeft + 1;
+
+                long count = (long) (bottom - top) * (right - left);
+                long sum = sums[bottom * stride + right] - sums[top * stride + right]
+                        - sums[bottom * stride + left] + sums[top * stride + left];
+                long squareSum = squareSums[bottom * stride + right] - squareSums[top * stride + right]
+                        - squareSums[bottom * stride + left] + squareSums[top * stride + left];
+
+                double mean = (double) sum / count;
+                double variance = (double) squareSum / count - mean * mean;
+                double stdDev = Math.sqrt(Math.max(0, variance));
+                double threshold = mean * (1 + k * (stdDev / R - 1));
+
+                int index = y * width + x;
+                binary[index] = (gray[index] & 0xFF) > threshold ? (byte) 255 : 0;
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "SauvolaBinarizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.doc_scan;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import com.example.doc_scan.model.Quad;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+
+// Everything one scan hands from one screen to the next: the capture, the detected quad and the
+// cropped receipt. There is at most one session. It starts when a picture is taken and ends
+// when the result, or the cancellation, is returned to Flutter, which releases its buffers.
+//
+// The cropped images are SharedMats: a screen that shows one retains it, so the session can
+// drop its own reference (on a new crop, on eviction or at the end) without pulling the
+// buffer from under that screen.
+//
+// In multi-capture mode the crops of a long receipt are stitched section by section. The
+// stitcher is handed from session to session until the result is returned.
+class ScanSession {
+    private static final String TAG = "DocScanner::Session";
+
+    // Native memory the session keeps for a scan. Above it, buffers that can be recomputed are
+    // evicted.
+    private static final long MEMORY_BUDGET_BYTES = 48L * 1024 * 1024;
+
+    private static ScanSession current;
+    // The live Mats when the previous session started, to report what a scan left behind
+    private static MatTracker.Snapshot matsAtPreviousStart;
+
+    // The camera's JPEG and the clockwise rotation in degrees that turns it upright, the quad
+    // detected on the preview (null if there was none) and the size of the preview frame the
+    // quad was detected in, already rotated upright by that rotation
+    final byte[] jpegData;
+    final int jpegRotation;
+    final Quad detectedQuad;
+    final int previewWidth;
+    final int previewHeight;
+    final CroppedReceipt.Binarization binarization;
+    final boolean multiCapture;
+
+    private SharedMat croppedGray;
+    // Computed from the gray crop when it's first needed. Can be evicted, it's recomputed then.
+    private SharedMat croppedThreshold;
+    private boolean shouldShowThresholded;
+    private ReceiptStitcher stitcher;
+    // True while addCropToStitch() appends to 'stitcher' outside the lock. The stitcher can't
+    // be handed on or released meanwhile.
+    private boolean stitching = false;
+    private boolean ended = false;
+
+    private ScanSession(byte[] jpegData, int jpegRotation, Quad detectedQuad, int previewWidth, int previewHeight,
+                        CroppedReceipt.Binarization binarization, boolean multiCapture) {
+        this.jpegData = jpegData;
+        this.jpegRotation = jpegRotation;
+        this.detectedQuad = detectedQuad;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.binarization = binarization;
+        this.multiCapture = multiCapture;
+    }
+
+    // Starts the session of a new capture, ending the previous one. The sections the previous
+    // session stitched are carried over.
+    static synchronized ScanSession start(byte[] jpegData, int jpegRotation, Quad detectedQuad,
+                                          int previewWidth, int previewHeight,
+                                          CroppedReceipt.Binarization binarization, boolean multiCapture) {
+        ReceiptStitcher stitcher = null;
+        if (current != null) {
+            stitcher = current.takeStitcher();
+            current.releaseBuffers();
+        }
+
+        // Everything the previous scan allocated should be released by now
+        if (matsAtPreviousStart != null) MatTracker.logGrowth("Previous scan", matsAtPreviousStart);
+        matsAtPreviousStart = MatTracker.snapshot();
+
+        current = new ScanSession(jpegData, jpegRotation, detectedQuad, previewWidth, previewHeight, binarization,
+                multiCapture);
+        current.stitcher = stitcher;
+        return current;
+    }
+
+    // The running session, or null if there is none, e.g. after the process was restarted
+    static synchronized ScanSession current() {
+        return current;
+    }
+
+    // Ends the running session and releases its buffers
+    static synchronized void end() {
+        if (current == null) return;
+        current.releaseBuffers();
+        current = null;
+    }
+
+    // Called from onTrimMemory. From TRIM_MEMORY_RUNNING_LOW on, which includes every level
+    // after the UI is hidden, everything that can be recomputed is dropped.
+    static synchronized void trimMemory(int level) {
+        if (current == null) return;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) current.evict();
+    }
+
+    // Keeps the crop the user confirmed, replacing an earlier one. The session retains its own
+    // reference, the caller keeps theirs. The thresholded crop is computed on the first
+    // acquireCroppedThreshold().
+    synchronized void setCroppedReceipt(CroppedReceipt receipt) {
+        if (ended) return;
+
+        releaseCrop();
+        croppedGray = receipt.gray.retain();
+        shouldShowThresholded = receipt.shouldShowThresholded;
+        enforceBudget();
+    }
+
+    synchronized boolean hasCroppedReceipt() {
+        return croppedGray != null;
+    }
+
+    synchronized boolean shouldShowThresholded() {
+        return shouldShowThresholded;
+    }
+
+    // Returns a new reference to the gray crop, or null if there is none. The caller releases
+    // it.
+    synchronized SharedMat acquireCroppedGray() {
+        return croppedGray != null ? croppedGray.retain() : null;
+    }
+
+    // Returns a new reference to the thresholded crop, recomputing it if it was evicted, or null
+    // if there is no crop. The caller releases it. Recomputing is slow and doesn't hold the
+    // session's lock, run it on the CaptureProcessor.
+    SharedMat acquireCroppedThreshold() {
+        SharedMat gray;
+        synchronized (this) {
+            if (croppedThreshold != null) return croppedThreshold.retain();
+            if (croppedGray == null) return null;
+            gray = croppedGray.retain();
+        }
+
+        SharedMat threshold;
+        try {
+            threshold = new SharedMat(CroppedReceipt.threshold(gray.get(), binarization));
+        } finally {
+            gray.release();
+        }
+
+        synchronized (this) {
+            // Kept for the next caller, unless the crop was replaced meanwhile
+            if (!ended && croppedGray == gray && croppedThreshold == null) {
+                croppedThreshold = threshold.retain();
+                enforceBudget();
+            }
+        }
+        return threshold;
+    }
+
+    // Adds the gray crop as the next section of a long receipt. Returns false if it didn't
+    // overlap the previous section and was appended below it. Slow and doesn't hold the
+    // session's lock, run it on the CaptureProcessor.
+    boolean addCropToStitch(File cacheDir) throws IOException {
+        // A section that's only half appended can't be taken back, a cancelled job stops before
+        CaptureProcessor.throwIfCancelled();
+        ReceiptStitcher appending;
+        SharedMat gray;
+        synchronized (this) {
+            if (ended || croppedGray == null) throw new IllegalStateException("There is no crop to add");
+            if (stitching) throw new IllegalStateException("A section is being added already");
+            if (stitcher == null) stitcher = new ReceiptStitcher(new File(cacheDir, "receipt-strip.raw"));
+            appending = stitcher;
+            gray = croppedGray.retain();
+            stitching = true;
+        }
+
+        try {
+            return appending.append(gray.get());
+        } finally {
+            gray.release();
+            doneStitching();
+        }
+    }
+
+    // If the session ended while a section was added, the stitcher was left for this to release
+    private synchronized void doneStitching() {
+        stitching = false;
+        if (ended && stitcher != null) {
+            stitcher.release();
+            stitcher = null;
+        }
+        notifyAll();
+    }
+
+    // The number of sections stitched so far, the current crop not included
+    synchronized int stitchedSectionCount() {
+        return stitcher != null ? stitcher.segmentCount() : 0;
+    }
+
+    // Adds the gray crop as the last section and returns the whole receipt, or null if nothing
+    // was stitched. The caller releases it. Slow and doesn't hold the session's lock, run it on
+    // the CaptureProcessor.
+    Mat finishStitch() throws IOException, InterruptedException {
+        CaptureProcessor.throwIfCancelled();
+        ReceiptStitcher finishing;
+        SharedMat gray;
+        synchronized (this) {
+            while (stitching) wait();
+            if (stitcher == null || croppedGray == null) return null;
+            finishing = stitcher;
+            stitcher = null;
+            gray = croppedGray.retain();
+        }
+
+        try {
+            finishing.append(gray.get());
+            return finishing.finish();
+        } finally {
+            gray.release();
+            finishing.release();
+        }
+    }
+
+    // The stitcher for the next session. One that a section is still being added to stays here
+    // and is released when that's done, its sections are lost.
+    private synchronized ReceiptStitcher takeStitcher() {
+        if (stitching) {
+            Log.w(TAG, "A section was still being added, the stitched sections are dropped");
+            return null;
+        }
+        ReceiptStitcher taken = stitcher;
+        stitcher = null;
+        return taken;
+    }
+
+    private long memoryUsage() {
+        long bytes = jpegData.length;
+        if (croppedGray != null) bytes += croppedGray.byteCount();
+        if (croppedThreshold != null) bytes += croppedThreshold.byteCount();
+        return bytes;
+    }
+
+    private void enforceBudget() {
+        if (memoryUsage() <= MEMORY_BUDGET_BYTES) return;
+        evict();
+        if (memoryUsage() > MEMORY_BUDGET_BYTES) {
+            Log.w(TAG, "Scan uses " + memoryUsage() + " bytes, above the budget of " + MEMORY_BUDGET_BYTES);
+        }
+    }
+
+    private synchronized void evict() {
+        if (croppedThreshold != null) {
+            croppedThreshold.release();
+            croppedThreshold = null;
+        }
+    }
+
+    private void releaseCrop() {
+        if (croppedGray != null) croppedGray.release();
+        if (croppedThreshold != null) croppedThreshold.release();
+        croppedGray = null;
+        croppedThreshold = null;
+    }
+
+    private synchronized void releaseBuffers() {
+        ended = true;
+        releaseCrop();
+        // A stitcher in use is released by doneStitching()
+        if (stitcher != null && !stitching) {
+            stitcher.release();
+            stitcher = null;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.doc_scan;
+
+import org.opencv.core.Mat;
+
+// A Mat with a reference count, for native buffers that are handed between activities and
+// background steps. Whoever creates it holds the first reference, every other owner calls
+// retain(), and every owner calls release() exactly once. The native buffer is freed when the
+// last reference is released.
+final class SharedMat {
+    private final Mat mat;
+    private int references = 1;
+
+    SharedMat(Mat mat) {
+        this.mat = MatTracker.track(mat);
+    }
+
+    // Adds an owner and returns this, so it can be used inline
+    synchronized SharedMat retain() {
+        if (references == 0) throw new IllegalStateException("The Mat has already been released");
+        references++;
+        return this;
+    }
+
+    synchronized void release() {
+        if (references == 0) throw new IllegalStateException("The Mat has already been released");
+        references--;
+        if (references == 0) {
+            MatTracker.untrack(mat);
+            mat.release();
+        }
+    }
+
+    // Only valid while the caller holds a reference
+    Mat get() {
+        return mat;
+    }
+
+    // The size of the native buffer
+    long byteCount() {
+        return mat.total() * mat.elemSize();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.doc_scan;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.example.doc_scan.model.VisionResult;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.ml.vision.FirebaseVision;
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.text.FirebaseVisionText;
+import com.google.firebase.ml.vision.text.FirebaseVisionTextRecognizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs OCR on a receipt image. The recognizer scales large images down, so on a tall receipt
+// the small print gets lost. A tall image is therefore cut into overlapping horizontal strips
+// that are recognized at the same time, and the lines are merged into one VisionResult with
+// boxes normalized to the whole image.
+//
+// Every line is taken from the strip whose middle part holds its center: the strips overlap
+// by far more than a text line, so that strip holds the whole line. A line read twice near a
+// seam anyway (same text, mostly the same box) is kept once.
+final class StripRecognizer {
+    private static final String TAG = "DocScanner::OCR";
+
+    // Images up to this many times as high as wide are recognized in one piece
+    private static final double MAX_SINGLE_ASPECT_RATIO = 2;
+    // Strip height and overlap as a part of the image width. A receipt line is about 1/30 of
+    // the width high.
+    private static final double STRIP_HEIGHT_FACTOR = 1.25;
+    private static final double STRIP_OVERLAP_FACTOR = 0.15;
+    private static final double DUPLICATE_OVERLAP = 0.5;
+
+    private StripRecognizer() {}
+
+    // Recognizes 'image' and passes the lines to 'callback' on the main thread, or null if the
+    // recognition failed. Must be called on the main thread.
+    static void recognize(Bitmap image, CaptureProcessor.Callback<VisionResult> callback) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] stripTops = stripTops(width, height);
+        int stripHeight = stripTops.length == 1 ? height : (int) (width * STRIP_HEIGHT_FACTOR);
+
+        FirebaseVisionTextRecognizer detector = FirebaseVision.getInstance().getOnDeviceTextRecognizer();
+        List<Task<FirebaseVisionText>> tasks = new ArrayList<>();
+        for (int top : stripTops) {
+            if (stripTops.length == 1) {
+                tasks.add(detector.processImage(FirebaseVisionImage.fromBitmap(image)));
+                continue;
+            }
+            // A copy of a full width part of the image, freed as soon as it's recognized
+            Bitmap strip = Bitmap.createBitmap(image, 0, top, width, stripHeight);
+            tasks.add(detector.processImage(FirebaseVisionImage.fromBitmap(strip))
+                    .addOnCompleteListener(task -> strip.recycle()));
+        }
+        if (stripTops.length > 1) Log.i(TAG, "Recognizing " + stripTops.length + " strips of " + width + "x" + stripHeight);
+
+        Tasks.<FirebaseVisionText>whenAllSuccess(tasks)
+                .addOnSuccessListener(results -> callback.onResult(merge(results, stripTops, stripHeight, width, height)))
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Text recognition failed", e);
+                    callback.onResult(null);
+                });
+    }
+
+    // The tops of the strips, the last one ends at the bottom of the image
+    private static int[] stripTops(int width, int height) {
+        if (height <= width * MAX_SINGLE_ASPECT_RATIO) return new int[] { 0 };
+
+        int stripHeight = (int) (width * STRIP_HEIGHT_FACTOR);
+        int step = stripHeight - (int) (width * STRIP_OVERLAP_FACTOR);
+        int count = (int) Math.ceil((double) (height - stripHeight) / step) + 1;
+        int[] tops = new int[count];
+        for (int i = 0; i < count; i++) tops[i] = Math.min(i * step, height - stripHeight);
+        return tops;
+    }
+
+    private static VisionResult merge(List<FirebaseVisionText> results, int[] stripTops, int stripHeight,
+                                      int width, int height) {
+        VisionResult merged = new VisionResult(width, height, 0);
+        int previousStripStart = 0;
+        int last = stripTops.length - 1;
+
+        for (int i = 0; i <= last; i++) {
+            // The seams lie in the middle of the overlaps with the neighbouring strips
+            double seamAbove = i == 0 ? Double.NEGATIVE_INFINITY : (stripTops[i] + stripTops[i - 1] + stripHeight) / 2.0;
+            double seamBelow = i == last ? Double.POSITIVE_INFINITY : (stripTops[i + 1] + stripTops[i] + stripHeight) / 2.0;
+            int stripStart = merged.size();
+
+            for (FirebaseVisionText.TextBlock block : results.get(i).getTextBlocks()) {
+                for (FirebaseVisionText.Line line : block.getLines()) {
+                    Rect box = line.getBoundingBox();
+                    if (box == null) continue;
+
+                    double top = box.top + stripTops[i];
+                    double bottom = box.bottom + stripTops[i];
+                    double centerY = (top + bottom) / 2;
+                    if (centerY < seamAbove || centerY >= seamBelow) continue;
+
+                    // The box normalized to the whole image
+                    double left = box.left / (double) width;
+                    double right = box.right / (double) width;
+                    top /= height;
+                    bottom /= height;
+                    if (isDuplicate(merged, previousStripStart, stripStart, line.getText(), left, top, right, bottom)) continue;
+
+                    merged.add(line.getText(), -1.0, left, top, right, bottom);
+                }
+            }
+            previousStripStart = stripStart;
+        }
+        return merged;
+    }
+
+    // True if one of the lines [from, to) has 'text' and mostly the same box
+    private static boolean isDuplicate(VisionResult lines, int from, int to, String text,
+                                       double left, double top, double right, double bottom) {
+        for (int j = from; j < to; j++) {
+            if (!text.equals(lines.getText(j))) continue;
+
+            double overlapWidth = Math.min(right, lines.getX(j) + lines.getWidth(j)) - Math.max(left, lines.getX(j));
+            double overlapHeight = Math.min(bottom, lines.getY(j) + lines.getHeight(j)) - Math.max(top, lines.getY(j));
+            if (overlapWidth <= 0 || overlapHeight <= 0) continue;
+
+            double overlap = overlapWidth * overlapHeight;
+            double union = (right - left) * (bottom - top) + lines.getWidth(j) * lines.getHeight(j) - overlap;
+            if (overlap / union > DUPLICATE_OVERLAP) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.doc_scan.geometry;
+
+import com.example.doc_scan.model.Corner;
+import com.example.doc_scan.model.Quad;
+
+// Allocation-free geometry on plain doubles, shared by the funnel, the crop overlay and the
+// crop itself. Nothing here creates Points or uses trigonometry.
+public final class Geometry {
+    private Geometry() {}
+
+    public static double distanceSquared(double x1, double y1, double x2, double y2) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        return dx * dx + dy * dy;
+    }
+
+    public static double distance(double x1, double y1, double x2, double y2) {
+        return Math.sqrt(distanceSquared(x1, y1, x2, y2));
+    }
+
+    // Distance between the same corner of two quads
+    public static double cornerDistanceSquared(Quad q1, Quad q2, Corner corner) {
+        return distanceSquared(q1.getX(corner), q1.getY(corner), q2.getX(corner), q2.getY(corner));
+    }
+
+    // Z component of (a - o) x (b - o). Positive when o -> a -> b turns clockwise in image
+    // coordinates (y pointing down), negative when counterclockwise and 0 when collinear.
+    public static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+        return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+    }
+
+    // (a - o) . (b - o)
+    public static double dot(double ox, double oy, double ax, double ay, double bx, double by) {
+        return (ax - ox) * (bx - ox) + (ay - oy) * (by - oy);
+    }
+
+    // Returns the cosine of an angle in degrees, to be passed to angleIsAbove. Compute it once,
+    // e.g. in a static field, not per call.
+    public static double cosineOf(double degrees) {
+        return Math.cos(Math.toRadians(degrees));
+    }
+
+    // Checks if the angle at 'o' between 'a' and 'b' is strictly larger than the angle with
+    // cosine 'boundCosine', i.e. cos(angle) < boundCosine, without acos or sqrt.
+    // A zero length side has no angle and never passes.
+    public static boolean angleIsAbove(double ox, double oy, double ax, double ay, double bx, double by,
+                                       double boundCosine) {
+        double lengthsSquared = distanceSquared(ox, oy, ax, ay) * distanceSquared(ox, oy, bx, by);
+        if (lengthsSquared == 0) return false;
+
+        double dot = dot(ox, oy, ax, ay, bx, by);
+        double boundSquared = boundCosine * boundCosine * lengthsSquared;
+        if (boundCosine >= 0) {
+            return dot < 0 || dot * dot < boundSquared;
+        }
+        return dot < 0 && dot * dot > boundSquared;
+    }
+
+    // Checks if the angle at 'o' between 'a' and 'b' is not a straight angle (180 degrees)
+    public static boolean angleIsBelowStraight(double ox, double oy, double ax, double ay, double bx, double by) {
+        return cross(ox, oy, ax, ay, bx, by) != 0 || dot(ox, oy, ax, ay, bx, by) > 0;
+    }
+
+    // A quad is convex when walking lt -> rt -> rb -> lb turns the same way at every corner
+    public static boolean isConvex(Quad quad) {
+        double ltX = quad.getX(Corner.LEFT_TOP), ltY = quad.getY(Corner.LEFT_TOP);
+        double rtX = quad.getX(Corner.RIGHT_TOP), rtY = quad.getY(Corner.RIGHT_TOP);
+        double rbX = quad.getX(Corner.RIGHT_BOTTOM), rbY = quad.getY(Corner.RIGHT_BOTTOM);
+        double lbX = quad.getX(Corner.LEFT_BOTTOM), lbY = quad.getY(Corner.LEFT_BOTTOM);
+
+        double c1 = cross(ltX, ltY, rtX, rtY, rbX, rbY);
+        double c2 = cross(rtX, rtY, rbX, rbY, lbX, lbY);
+        double c3 = cross(rbX, rbY, lbX, lbY, ltX, ltY);
+        double c4 = cross(lbX, lbY, ltX, ltY, rtX, rtY);
+
+        return (c1 > 0 && c2 > 0 && c3 > 0 && c4 > 0) || (c1 < 0 && c2 < 0 && c3 < 0 && c4 < 0);
+    }
+
+    // Given three collinear points p, q, r, checks if point q lies on line segment 'pr'
+    static boolean onSegment(double px, double py, double qx, double qy, double rx, double ry) {
+        return qx <= Math.max(px, rx) && qx >= Math.min(px, rx) &&
+                qy <= Math.max(py, ry) && qy >= Math.min(py, ry);
+    }
+
+    // Orientation of the ordered triplet (p, q, r):
+    // 0 --> p, q and r are collinear
+    // 1 --> Clockwise
+    // 2 --> Counterclockwise
+    static int orientation(double px, double py, double qx, double qy, double rx, double ry) {
+        // See https://www.geeksforgeeks.org/orientation-3-ordered-points/
+        double val = (qy - py) * (rx - qx) - (qx - px) * (ry - qy);
+        if (val == 0) return 0; // collinear
+        return (val > 0)? 1: 2; // clock or counterclock wise
+    }
+
+    // Returns true if line segment 'p1q1' and 'p2q2' intersect, including touching and
+    // collinear overlapping segments.
+    public static boolean segmentsIntersect(double p1x, double p1y, double q1x, double q1y,
+                                            double p2x, double p2y, double q2x, double q2y) {
+        int o1 = orientation(p1x, p1y, q1x, q1y, p2x, p2y);
+        int o2 = orientation(p1x, p1y, q1x, q1y, q2x, q2y);
+        int o3 = orientation(p2x, p2y, q2x, q2y, p1x, p1y);
+        int o4 = orientation(p2x, p2y, q2x, q2y, q1x, q1y);
+
+        // General case
+        if (o1 != o2 && o3 != o4) return true;
+
+        // Special cases, one end point is collinear with and lies on the other segment
+        if (o1 == 0 && onSegment(p1x, p1y, p2x, p2y, q1x, q1y)) return true;
+        if (o2 == 0 && onSegment(p1x, p1y, q2x, q2y, q1x, q1y)) return true;
+        if (o3 == 0 && onSegment(p2x, p2y, p1x, p1y, q2x, q2y)) return true;
+        if (o4 == 0 && onSegment(p2x, p2y, q1x, q1y, q2x, q2y)) return true;
+
+        return false;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.doc_scan.geometry;
+
+import com.example.doc_scan.model.Corner;
+import com.example.doc_scan.model.Quad;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+// An immutable 3x3 homogeneous transform. Transforms are composed once with 'then' and the
+// result is applied to all points in a single pass, or handed to warpPerspective as a Mat.
+public final class Transform {
+    private static final Corner[] CORNERS = Corner.values();
+
+    // Row-major 3x3 matrix
+    private final double[] m;
+
+    private Transform(double[] m) {
+        this.m = m;
+    }
+
+    public static Transform identity() {
+        return new Transform(new double[] { 1, 0, 0, 0, 1, 0, 0, 0, 1 });
+    }
+
+    public static Transform translation(double tx, double ty) {
+        return new Transform(new double[] { 1, 0, tx, 0, 1, ty, 0, 0, 1 });
+    }
+
+    public static Transform scale(double sx, double sy) {
+        return new Transform(new double[] { sx, 0, 0, 0, sy, 0, 0, 0, 1 });
+    }
+
+    // Scales around 'center' instead of the origin
+    public static Transform scale(double scale, Point center) {
+        return translation(-center.x, -center.y)
+                .then(scale(scale, scale))
+                .then(translation(center.x, center.y));
+    }
+
+    // Rotates clockwise (in image coordinates) around 'center'. Multiples of 90 degrees are
+    // exact, so rotated pixel coordinates stay whole numbers.
+    public static Transform rotation(double degrees, Point center) {
+        double cos, sin;
+        if (degrees % 90 == 0) {
+            int quarterTurns = (((int) (degrees / 90)) % 4 + 4) % 4;
+            cos = new int[] { 1, 0, -1, 0 }[quarterTurns];
+            sin = new int[] { 0, 1, 0, -1 }[quarterTurns];
+        } else {
+            double angle = Math.toRadians(degrees);
+            cos = Math.cos(angle);
+            sin = Math.sin(angle);
+        }
+
+        Transform rotation = new Transform(new double[] { cos, -sin, 0, sin, cos, 0, 0, 0, 1 });
+        return translation(-center.x, -center.y)
+                .then(rotation)
+                .then(translation(center.x, center.y));
+    }
+
+    // Reads a 3x3 matrix, e.g. the result of Imgproc.getPerspectiveTransform
+    public static Transform fromMat(Mat mat) {
+        Mat doubleMat = mat;
+        if (mat.type() != CvType.CV_64F) {
+            doubleMat = new Mat();
+            mat.convertTo(doubleMat, CvType.CV_64F);
+        }
+
+        double[] values = new double[9];
+        doubleMat.get(0, 0, values);
+        if (doubleMat != mat) doubleMat.release();
+        return new Transform(values);
+    }
+
+    // Returns the transform that first applies this transform and then 'next'
+    public Transform then(Transform next) {
+        double[] a = next.m;
+        double[] b = this.m;
+        double[] r = new double[9];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                r[row * 3 + col] = a[row * 3] * b[col]
+                        + a[row * 3 + 1] * b[3 + col]
+                        + a[row * 3 + 2] * b[6 + col];
+            }
+        }
+        return new Transform(r);
+    }
+
+    public Transform inverse() {
+        double a = m[0], b = m[1], c = m[2];
+        double d = m[3], e = m[4], f = m[5];
+        double g = m[6], h = m[7], i = m[8];
+
+        double coA = e * i - f * h;
+        double coB = -(d * i - f * g);
+        double coC = d * h - e * g;
+        double determinant = a * coA + b * coB + c * coC;
+        if (determinant == 0) throw new IllegalStateException("Transform is not invertible");
+
+        double s = 1.0 / determinant;
+        return new Transform(new double[] {
+                coA * s, -(b * i - c * h) * s, (b * f - c * e) * s,
+                coB * s, (a * i - c * g) * s, -(a * f - c * d) * s,
+                coC * s, -(a * h - b * g) * s, (a * e - b * d) * s,
+        });
+    }
+
+    public Point apply(Point point) {
+        double w = m[6] * point.x + m[7] * point.y + m[8];
+        return new Point((m[0] * point.x + m[1] * point.y + m[2]) / w,
+                (m[3] * point.x + m[4] * point.y + m[5]) / w);
+    }
+
+    // Maps all four corners in one pass. The corners are reassigned afterwards, as a rotation
+    // or mirror changes which point is the left-top one.
+    public Quad apply(Quad quad) {
+        double[] mapped = new double[8];
+        for (Corner corner : CORNERS) {
+            double x = quad.getX(corner);
+            double y = quad.getY(corner);
+            double w = m[6] * x + m[7] * y + m[8];
+            mapped[2 * corner.ordinal()] = (m[0] * x + m[1] * y + m[2]) / w;
+            mapped[2 * corner.ordinal() + 1] = (m[3] * x + m[4] * y + m[5]) / w;
+        }
+        return new Quad(mapped);
+    }
+
+    // A 3x3 CV_64F Mat that can be passed to Imgproc.warpPerspective. The caller releases it.
+    public Mat toMat() {
+        Mat mat = new Mat(3, 3, CvType.CV_64F);
+        mat.put(0, 0, m);
+        return mat;
+    }
+}
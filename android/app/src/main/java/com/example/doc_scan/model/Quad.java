@@ -1,137 +1,107 @@
 package com.example.doc_scan.model;
 
+import org.opencv.core.CvType;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 
 
-public class Quad {
-    private static final String TAG = "DocScanner::Quad";
+// An immutable quadrilateral. The corners are stored as plain doubles, so creating a quad
+// never allocates native memory. Use writeTo to get a MatOfPoint when it has to be drawn.
+public final class Quad {
+    // x, y pairs ordered as the Corner enum: left-top, right-top, left-bottom, right-bottom
+    private final double[] points;
 
-    public List<MatOfPoint> contourList;
-    public Point lt; // Left-top
-    public Point rt; // Right-top
-    public Point lb; // Left-bottom
-    public Point rb; // Right-bottom
-
-    public Quad(List<MatOfPoint> contour) {
-        if (contour.size() > 0) {
-            Point[] cornerPointsArray = contour.get(0).toArray();
-            List<Point> cornerPoints = Arrays.asList(cornerPointsArray);
-
-            this.randomlyAssignPointsToCorners(cornerPoints);
-            this.resetCorrectPointPerCorner();
-            contourList = contour;
-        }
+    // Creates a quad from four corner points in any order, without any native contour backing.
+    public Quad(Point p1, Point p2, Point p3, Point p4) {
+        this(new double[] { p1.x, p1.y, p2.x, p2.y, p3.x, p3.y, p4.x, p4.y });
     }
 
-    private void randomlyAssignPointsToCorners(List<Point> cornerPoints) {
-        lt = cornerPoints.get(0);
-        rt = cornerPoints.get(1);
-        lb = cornerPoints.get(2);
-        rb = cornerPoints.get(3);
+    // Creates a quad from four x, y pairs in any order. The array is not kept.
+    public Quad(double[] cornerPoints) {
+        this.points = new double[8];
+        assignCorrectPointPerCorner(cornerPoints, this.points);
     }
 
-    public void resetCorrectPointPerCorner() {
-        List<Point> cornerPoints = Arrays.asList(lt, rt, lb, rb);
-
-        // Sort array based on X
-        Collections.sort(cornerPoints, (p1, p2) -> Double.compare(p1.x, p2.x));
-
-        List<Point> leftMost = cornerPoints.subList(0, 2);
-        List<Point> rightMost = cornerPoints.subList(2, 4);
-
-        Collections.sort(leftMost, (p1, p2) -> Double.compare(p1.y, p2.y));
-        lt = leftMost.get(0);
-        lb = leftMost.get(1);
-
-        // May be incorrect
-        Collections.sort(rightMost, (p1, p2) -> Double.compare(p1.y, p2.y));
-        rt = rightMost.get(0);
-        rb = rightMost.get(1);
-
-//        Collections.sort(cornerPoints, (p1, p2) -> Double.compare(p1.x + p1.y, p2.x + p2.y));
-//        lt = cornerPoints.get(0);
-//        rb = cornerPoints.get(3);
-//        Collections.sort(cornerPoints, (p1, p2) -> Double.compare(p1.x - p1.y, p2.x - p2.y));
-//        rt = cornerPoints.get(3);
-//        lb = cornerPoints.get(0);
+    private Quad() {
+        this.points = new double[8];
     }
 
-    public void rotateCornerPoints(Point centerPoint) {
-        lt = rotatePointAround(lt, centerPoint, 90);
-        rt = rotatePointAround(rt, centerPoint, 90);
-        lb = rotatePointAround(lb, centerPoint, 90);
-        rb = rotatePointAround(rb, centerPoint, 90);
+    // Creates a quad from corner points that are already in corner order. The array is not kept.
+    private static Quad fromOrdered(double[] orderedPoints) {
+        Quad quad = new Quad();
+        System.arraycopy(orderedPoints, 0, quad.points, 0, 8);
+        return quad;
     }
 
-    public void moveCornerPoints(int transformX, int transformY) {
-        lt = transformPointY(lt, transformX, transformY);
-        rt = transformPointY(rt, transformX, transformY);
-        lb = transformPointY(lb, transformX, transformY);
-        rb = transformPointY(rb, transformX, transformY);
+    // Sorts the four points of 'source' on x to find the two left most and two right most
+    // points, and then on y within each pair. Uses a sorting network on indices, so nothing
+    // is allocated.
+    private static void assignCorrectPointPerCorner(double[] source, double[] target) {
+        int a = 0, b = 1, c = 2, d = 3, t;
+
+        // Sort indices based on X
+        if (source[2 * a] > source[2 * b]) { t = a; a = b; b = t; }
+        if (source[2 * c] > source[2 * d]) { t = c; c = d; d = t; }
+        if (source[2 * a] > source[2 * c]) { t = a; a = c; c = t; }
+        if (source[2 * b] > source[2 * d]) { t = b; b = d; d = t; }
+        if (source[2 * b] > source[2 * c]) { t = b; b = c; c = t; }
+
+        // a, b are the left most points, c, d the right most. Sort both on Y.
+        if (source[2 * a + 1] > source[2 * b + 1]) { t = a; a = b; b = t; }
+        if (source[2 * c + 1] > source[2 * d + 1]) { t = c; c = d; d = t; }
+
+        setPoint(target, Corner.LEFT_TOP, source[2 * a], source[2 * a + 1]);
+        setPoint(target, Corner.LEFT_BOTTOM, source[2 * b], source[2 * b + 1]);
+        setPoint(target, Corner.RIGHT_TOP, source[2 * c], source[2 * c + 1]);
+        setPoint(target, Corner.RIGHT_BOTTOM, source[2 * d], source[2 * d + 1]);
     }
 
-    public void scaleCornerPoints(double scaleFactor, Point centerPoint) {
-        lt = scalePoint(lt, centerPoint, scaleFactor);
-        rt = scalePoint(rt, centerPoint, scaleFactor);
-        lb = scalePoint(lb, centerPoint, scaleFactor);
-        rb = scalePoint(rb, centerPoint, scaleFactor);
+    private static void setPoint(double[] target, Corner corner, double x, double y) {
+        target[2 * corner.ordinal()] = x;
+        target[2 * corner.ordinal() + 1] = y;
     }
 
-    public Point rotatePointAround(Point point, Point center, double angle_deg) {
-        double angle = angle_deg * (Math.PI / 180);
-        double rotatedX = (Math.cos(angle) * (point.x - center.x)) - (Math.sin(angle) * (point.y-center.y)) + center.x;
-        double rotatedY = (Math.sin(angle) * (point.x - center.x)) + (Math.cos(angle) * (point.y - center.y)) + center.y;
-        return new Point(rotatedX, rotatedY);
+    // Returns a quad with the corners reassigned to the right corner, e.g. after dragging a
+    // corner past another one. Returns this quad if every point already is at its corner.
+    public Quad withCorrectPointPerCorner() {
+        Quad sorted = new Quad(points);
+        return Arrays.equals(sorted.points, points) ? this : sorted;
     }
 
-    Point scalePoint(Point point, Point center, double scale) {
-        double scaledX = ((point.x - center.x) * scale) + center.x;
-        double scaledY = ((point.y - center.y) * scale) + center.y;
-        return new Point(scaledX, scaledY);
+    public double getX(Corner corner) {
+        return points[2 * corner.ordinal()];
     }
 
-    Point transformPointY(Point point, int transformX, int transformY) {
-        return new Point(point.x + transformX, point.y + transformY);
+    public double getY(Corner corner) {
+        return points[2 * corner.ordinal() + 1];
     }
 
     public Point getCorner(Corner corner) {
-        switch (corner) {
-            case LEFT_TOP:
-                return lt;
-            case RIGHT_TOP:
-                return rt;
-            case LEFT_BOTTOM:
-                return lb;
-            case RIGHT_BOTTOM:
-                return rb;
-        }
-        return new Point(0, 0);
+        return new Point(getX(corner), getY(corner));
     }
 
-    public void setCornerXY(Corner corner, double x, double y) {
-        switch (corner) {
-            case LEFT_TOP:
-                lt.x = x;
-                lt.y = y;
-                break;
-            case RIGHT_TOP:
-                rt.x = x;
-                rt.y = y;
-                break;
-            case LEFT_BOTTOM:
-                lb.x = x;
-                lb.y = y;
-                break;
-            case RIGHT_BOTTOM:
-                rb.x = x;
-                rb.y = y;
-                break;
-        }
+    // Returns a quad with one corner moved. The corners are not reassigned, so the moved
+    // corner keeps its name while it is being dragged.
+    public Quad withCornerXY(Corner corner, double x, double y) {
+        Quad moved = fromOrdered(points);
+        setPoint(moved.points, corner, x, y);
+        return moved;
     }
 
+    // Writes the corners as a closed polygon (lt, rt, rb, lb) into 'contour', going through
+    // 'polygon', an int[8]. Both can be reused between draws.
+    public void writeTo(MatOfPoint contour, int[] polygon) {
+        polygon[0] = (int) getX(Corner.LEFT_TOP);
+        polygon[1] = (int) getY(Corner.LEFT_TOP);
+        polygon[2] = (int) getX(Corner.RIGHT_TOP);
+        polygon[3] = (int) getY(Corner.RIGHT_TOP);
+        polygon[4] = (int) getX(Corner.RIGHT_BOTTOM);
+        polygon[5] = (int) getY(Corner.RIGHT_BOTTOM);
+        polygon[6] = (int) getX(Corner.LEFT_BOTTOM);
+        polygon[7] = (int) getY(Corner.LEFT_BOTTOM);
+        contour.create(4, 1, CvType.CV_32SC2);
+        contour.put(0, 0, polygon);
+    }
 }
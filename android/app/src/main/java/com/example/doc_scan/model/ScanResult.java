@@ -1,13 +1,16 @@
 package com.example.doc_scan.model;
 
+// What is returned to Flutter. The OCR results (in the binary form of VisionResult.encode())
+// and the images (JPEG, or PNG for a thresholded crop) are files in the app's cache, only
+// their paths are sent over the channel.
 public class ScanResult {
-    public VisionResult visionResult;
-    public String originalImageBase64;
-    public String croppedImageBase64;
+    public String visionResultPath;
+    public String originalImagePath;
+    public String croppedImagePath;
 
-    public ScanResult(VisionResult visionResults, String originalImageBase64, String croppedImageBase64) {
-        this.visionResult = visionResults;
-        this.originalImageBase64 = originalImageBase64;
-        this.croppedImageBase64 = croppedImageBase64;
+    public ScanResult(String visionResultPath, String originalImagePath, String croppedImagePath) {
+        this.visionResultPath = visionResultPath;
+        this.originalImagePath = originalImagePath;
+        this.croppedImagePath = croppedImagePath;
     }
 }
@@ -1,52 +1,151 @@
 package com.example.doc_scan.model;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
 
+// The text lines OCR found on a receipt, stored in columns: entry i of every array belongs to
+// line i. The boxes are normalized to the size of the source image. Apart from its text, no
+// object is allocated per line.
+//
+// encode() writes the compact binary form that is returned to Flutter (decoded by
+// VisionResult.fromBytes in lib/models/TextObservation.dart, test/visionResult_test.dart
+// decodes bytes written by it). All numbers are little endian:
+//
+//   int32    MAGIC
+//   float32  source width, source height
+//   int32    string count, then per string: int32 UTF-8 byte length, the bytes
+//   0-3      zero bytes, aligning the columns to 4 bytes
+//   int32    line count
+//   int32[]  string index of every line
+//   float32[] x, y, width, height, confidence of every line
+//
+// Texts that occur more than once, like prices, are stored once in the string table.
 public class VisionResult {
-    public Size sourceImageSize;
-    public ArrayList<TextObservation> textObservations;
+    private static final int MAGIC = 0x31525356; // "VSR1"
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    public VisionResult(double imageWidth, double imageHeight, ArrayList<TextObservation> textObservations) {
-        this.sourceImageSize = new Size(imageWidth, imageHeight);
-        this.textObservations = textObservations;
+    public final double sourceWidth;
+    public final double sourceHeight;
+
+    private String[] texts;
+    private float[] xs;
+    private float[] ys;
+    private float[] widths;
+    private float[] heights;
+    private float[] confidences;
+    private int count = 0;
+
+    public VisionResult(double sourceWidth, double sourceHeight, int expectedLines) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        int capacity = Math.max(expectedLines, 16);
+        texts = new String[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        widths = new float[capacity];
+        heights = new float[capacity];
+        confidences = new float[capacity];
     }
 
-    // Required child classes
-    public static class TextObservation {
-        public String text;
-        public double confidence;
-        public Rect normalizedRect;
+    // Adds a line with its normalized box. The confidence is -1 if OCR doesn't report one.
+    public void add(String text, double confidence, double left, double top, double right, double bottom) {
+        if (count == texts.length) grow();
+        texts[count] = text;
+        xs[count] = (float) left;
+        ys[count] = (float) top;
+        widths[count] = (float) (right - left);
+        heights[count] = (float) (bottom - top);
+        confidences[count] = (float) confidence;
+        count++;
+    }
 
-        public TextObservation(String text, double confidence, Rect normalizedRect) {
-            this.text = text;
-            this.confidence = confidence;
-            this.normalizedRect = normalizedRect;
-        }
+    public int size() {
+        return count;
+    }
+
+    public String getText(int i) {
+        return texts[i];
     }
 
-    public static class Rect {
-        public double xPos;
-        public double yPos;
-        public Size size;
+    public float getX(int i) {
+        return xs[i];
+    }
 
-        public Rect(double left, double right, double top, double bottom) {
-            double width = right - left;
-            double height = bottom - top;
-            Size size = new Size(width, height);
+    public float getY(int i) {
+        return ys[i];
+    }
 
-            this.xPos = left;
-            this.yPos = top;
-            this.size = size;
-        }
+    public float getWidth(int i) {
+        return widths[i];
+    }
+
+    public float getHeight(int i) {
+        return heights[i];
+    }
+
+    public float getConfidence(int i) {
+        return confidences[i];
     }
 
-    public static class Size {
-        public double width;
-        public double height;
+    public byte[] encode() {
+        // The string table
+        HashMap<String, Integer> stringIndices = new HashMap<>();
+        int[] textIndices = new int[count];
+        byte[][] strings = new byte[count][];
+        int stringCount = 0;
+        int stringBytes = 0;
+        for (int i = 0; i < count; i++) {
+            Integer index = stringIndices.get(texts[i]);
+            if (index == null) {
+                index = stringCount;
+                stringIndices.put(texts[i], index);
+                strings[stringCount++] = texts[i].getBytes(UTF_8);
+                stringBytes += 4 + strings[index].length;
+            }
+            textIndices[i] = index;
+        }
+
+        int headerSize = 4 + 8 + 4 + stringBytes;
+        int padding = (4 - headerSize % 4) % 4;
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + padding + 4 + count * 4 * 6)
+                .order(ByteOrder.LITTLE_ENDIAN);
 
-        public Size(double width, double height) {
-            this.width = width;
-            this.height = height;
+        buffer.putInt(MAGIC);
+        buffer.putFloat((float) sourceWidth);
+        buffer.putFloat((float) sourceHeight);
+        buffer.putInt(stringCount);
+        for (int i = 0; i < stringCount; i++) {
+            buffer.putInt(strings[i].length);
+            buffer.put(strings[i]);
         }
+        for (int i = 0; i < padding; i++) buffer.put((byte) 0);
+
+        buffer.putInt(count);
+        buffer.asIntBuffer().put(textIndices, 0, count);
+        buffer.position(buffer.position() + count * 4);
+        putColumn(buffer, xs);
+        putColumn(buffer, ys);
+        putColumn(buffer, widths);
+        putColumn(buffer, heights);
+        putColumn(buffer, confidences);
+        return buffer.array();
+    }
+
+    private void putColumn(ByteBuffer buffer, float[] column) {
+        buffer.asFloatBuffer().put(column, 0, count);
+        buffer.position(buffer.position() + count * 4);
+    }
+
+    private void grow() {
+        int capacity = texts.length * 2;
+        texts = Arrays.copyOf(texts, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        widths = Arrays.copyOf(widths, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        confidences = Arrays.copyOf(confidences, capacity);
     }
 }
@@ -0,0 +1,120 @@
+package com.example.doc_scan.view;
+
+import android.graphics.Bitmap;
+
+import com.example.doc_scan.geometry.Transform;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// The edges of the captured image as it is shown in the view, with for every view pixel the
+// nearest edge pixel. It is computed once per crop screen, so snapping a dragged corner to an
+// edge is a single lookup. It also keeps the image as shown, which the magnifier draws from.
+public class EdgeSnapMap {
+    private final int width;
+    private final int height;
+
+    // Per view pixel the label of the nearest edge pixel (CV_32S)
+    private final Mat labels;
+    // Edge pixel position (y * width + x) per label - 1
+    private final int[] edgePixels;
+    private final Bitmap image;
+
+    private final int[] labelBuffer = new int[1];
+
+    private EdgeSnapMap(int width, int height, Mat labels, int[] edgePixels, Bitmap image) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.edgePixels = edgePixels;
+        this.image = image;
+    }
+
+    // Maps 'sourceImage' (RGBA) into the view with 'sourceToView', the same mapping the image
+    // view draws it with, and finds its edges. This is slow, call it on a background thread.
+    public static EdgeSnapMap compute(Mat sourceImage, Transform sourceToView, int viewWidth, int viewHeight) {
+        Mat shown = new Mat();
+        Mat transform = sourceToView.toMat();
+        Imgproc.warpPerspective(sourceImage, shown, transform, new Size(viewWidth, viewHeight));
+        transform.release();
+
+        Bitmap image = Bitmap.createBitmap(viewWidth, viewHeight, Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(shown, image);
+
+        Mat gray = new Mat();
+        Imgproc.cvtColor(shown, gray, Imgproc.COLOR_RGBA2GRAY);
+        shown.release();
+        Imgproc.GaussianBlur(gray, gray, new Size(5.0, 5.0), 0.0);
+
+        Mat edges = new Mat();
+        Imgproc.Canny(gray, edges, 50, 150);
+        gray.release();
+
+        // The distance transform measures the distance to the nearest zero pixel, so the edges
+        // have to be 0. With DIST_LABEL_PIXEL every zero pixel gets its own label, in row-major
+        // order, which is the same order findNonZero returns the edge pixels in.
+        Mat notEdges = new Mat();
+        Core.bitwise_not(edges, notEdges);
+
+        Mat distances = new Mat();
+        Mat labels = new Mat();
+        Imgproc.distanceTransformWithLabels(notEdges, distances, labels, Imgproc.DIST_L2,
+                Imgproc.DIST_MASK_5, Imgproc.DIST_LABEL_PIXEL);
+        notEdges.release();
+        distances.release();
+
+        MatOfPoint edgePoints = new MatOfPoint();
+        Core.findNonZero(edges, edgePoints);
+        edges.release();
+
+        int edgeCount = (int) edgePoints.total();
+        int[] edgeCoordinates = new int[edgeCount * 2];
+        if (edgeCount > 0) edgePoints.get(0, 0, edgeCoordinates);
+        edgePoints.release();
+
+        int[] edgePixels = new int[edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            edgePixels[i] = edgeCoordinates[2 * i + 1] * viewWidth + edgeCoordinates[2 * i];
+        }
+
+        return new EdgeSnapMap(viewWidth, viewHeight, labels, edgePixels, image);
+    }
+
+    // Looks up the edge pixel nearest to (x, y). If it is within 'maxDistance' the position is
+    // written to 'snapped' and true is returned.
+    public boolean snap(float x, float y, float maxDistance, float[] snapped) {
+        if (edgePixels.length == 0) return false;
+
+        int col = Math.min(width - 1, Math.max(0, Math.round(x)));
+        int row = Math.min(height - 1, Math.max(0, Math.round(y)));
+        labels.get(row, col, labelBuffer);
+
+        int label = labelBuffer[0];
+        if (label < 1 || label > edgePixels.length) return false;
+
+        int edgePixel = edgePixels[label - 1];
+        float edgeX = edgePixel % width;
+        float edgeY = edgePixel / width;
+        float dx = edgeX - x;
+        float dy = edgeY - y;
+        if (dx * dx + dy * dy > maxDistance * maxDistance) return false;
+
+        snapped[0] = edgeX;
+        snapped[1] = edgeY;
+        return true;
+    }
+
+    // The captured image as it is shown in the view, in view coordinates
+    public Bitmap getImage() {
+        return image;
+    }
+
+    public void release() {
+        labels.release();
+        image.recycle();
+    }
+}
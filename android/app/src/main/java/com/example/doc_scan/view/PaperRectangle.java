@@ -1,31 +1,55 @@
 package com.example.doc_scan.view;
 
 import android.content.Context;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.CornerPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.graphics.Region;
+import android.graphics.Shader;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
-import com.example.doc_scan.CheckLineIntersect;
+import com.example.doc_scan.geometry.Geometry;
 import com.example.doc_scan.model.Corner;
 import com.example.doc_scan.model.Quad;
 
-import org.opencv.core.Point;
+public class PaperRectangle extends View {
+    private static final double MIN_CORNER_ANGLE = 40;
+    private static final double MIN_CORNER_ANGLE_COSINE = Geometry.cosineOf(MIN_CORNER_ANGLE);
+    private static final Corner[] CORNERS = Corner.values();
 
-import java.util.Arrays;
-import java.util.List;
+    private static final float CONTOUR_STROKE_WIDTH = 10;
+
+    // Distance in dp within which a dragged corner snaps to an edge
+    private static final float SNAP_DISTANCE_DP = 12;
+    // Size of the magnifier and how much it enlarges
+    private static final float LOUPE_RADIUS_DP = 56;
+    private static final float LOUPE_MARGIN_DP = 16;
+    private static final float LOUPE_ZOOM = 2.5f;
 
-public class PaperRectangle extends View {
     // Properties
-    private Paint contourPaint = new Paint();
-    private Path contourPath = new Path();
+    private final Paint contourPaint = new Paint();
+    private final Paint overlayPaint = new Paint();
+    private final Path contourPath = new Path();
+
+    // Edge snapping and the magnifier, available once the edge map has been computed
+    private EdgeSnapMap edgeSnapMap;
+    private final float[] snappedPoint = new float[2];
+    private float snapDistance;
+    private float loupeRadius;
+    private float loupeMargin;
+    private final Paint loupePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint loupeBorderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Matrix loupeMatrix = new Matrix();
+    private final RectF loupeBounds = new RectF();
 
     private int viewWidth, viewHeight;
 
@@ -46,42 +70,61 @@ public class PaperRectangle extends View {
     // Constructors
     public PaperRectangle(Context context) {
         super(context);
-        this.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
         init(context);
     }
     public PaperRectangle(Context context, AttributeSet attrs) {
         super(context, attrs);
-        this.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
         init(context);
     }
 
     public PaperRectangle(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        this.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
         init(context);
     }
 
     private void init(Context context) {
+        // Clipping with Region.Op.DIFFERENCE is only hardware accelerated from API 18
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            this.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+        }
+
+        overlayPaint.setColor(Color.argb(80, 0, 0, 0));
+        overlayPaint.setStyle(Paint.Style.FILL);
+
         contourPaint.setColor(Color.WHITE);
         contourPaint.setAntiAlias(true);
         contourPaint.setDither(true);
-        contourPaint.setStrokeWidth(10);
+        contourPaint.setStrokeWidth(CONTOUR_STROKE_WIDTH);
         contourPaint.setStyle(Paint.Style.STROKE);
         contourPaint.setStrokeJoin(Paint.Join.ROUND);
         contourPaint.setStrokeCap(Paint.Cap.ROUND);
         contourPaint.setPathEffect(new CornerPathEffect(10));
+
+        float density = context.getResources().getDisplayMetrics().density;
+        snapDistance = SNAP_DISTANCE_DP * density;
+        loupeRadius = LOUPE_RADIUS_DP * density;
+        loupeMargin = LOUPE_MARGIN_DP * density;
+
+        loupeBorderPaint.setColor(Color.WHITE);
+        loupeBorderPaint.setStyle(Paint.Style.STROKE);
+        loupeBorderPaint.setStrokeWidth(2 * density);
+    }
+
+    // Enables snapping to edges and the magnifier. The map has to be computed for this view's
+    // size.
+    public void setEdgeSnapMap(EdgeSnapMap edgeSnapMap) {
+        this.edgeSnapMap = edgeSnapMap;
+        loupePaint.setShader(new BitmapShader(edgeSnapMap.getImage(), Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
     }
 
     public void previewCorners(Quad quad) {
         currentCorners = quad;
+        movePoints();
+    }
 
-        contourPath.reset();
-        contourPath.moveTo((float)quad.lt.x, (float)quad.lt.y);
-        contourPath.lineTo((float)quad.rt.x, (float)quad.rt.y);
-        contourPath.lineTo((float)quad.rb.x, (float)quad.rb.y);
-        contourPath.lineTo((float)quad.lb.x, (float)quad.lb.y);
-        contourPath.close();
-        this.invalidate();
+    // The corners as currently shown, including the adjustments made by the user
+    public Quad getCorners() {
+        return currentCorners;
     }
 
     @Override
@@ -94,16 +137,53 @@ public class PaperRectangle extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        Paint overlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        overlayPaint.setColor(Color.argb(80, 0, 0, 0));
-        overlayPaint.setStyle(Paint.Style.FILL);
-        canvas.drawRect(0, 0, this.getWidth(), this.getMeasuredHeight(), overlayPaint);
 
-        overlayPaint.setAlpha(0xFF);
-        overlayPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        // Darken everything outside the quad by clipping the quad out, instead of clearing it
+        // with a CLEAR xfermode, which needs a software layer.
+        canvas.save();
+        clipOutPath(canvas, contourPath);
+        canvas.drawRect(0, 0, this.getWidth(), this.getHeight(), overlayPaint);
+        canvas.restore();
 
-        canvas.drawPath(contourPath, overlayPaint);
         canvas.drawPath(contourPath, contourPaint);
+
+        if (cornerToMove != null && edgeSnapMap != null) drawLoupe(canvas);
+    }
+
+    // Canvas.clipOutPath only exists from API 26, before that the Region.Op variant is the only way
+    @SuppressWarnings("deprecation")
+    private static void clipOutPath(Canvas canvas, Path path) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            canvas.clipOutPath(path);
+        } else {
+            canvas.clipPath(path, Region.Op.DIFFERENCE);
+        }
+    }
+
+    // Draws an enlarged view around the dragged corner, so the finger does not hide the edge.
+    private void drawLoupe(Canvas canvas) {
+        float cornerX = (float) currentCorners.getX(cornerToMove);
+        float cornerY = (float) currentCorners.getY(cornerToMove);
+        float centerX = loupeBounds.centerX();
+        float centerY = loupeBounds.centerY();
+
+        loupeMatrix.setScale(LOUPE_ZOOM, LOUPE_ZOOM);
+        loupeMatrix.postTranslate(centerX - cornerX * LOUPE_ZOOM, centerY - cornerY * LOUPE_ZOOM);
+        loupePaint.getShader().setLocalMatrix(loupeMatrix);
+
+        canvas.drawCircle(centerX, centerY, loupeRadius, loupePaint);
+        canvas.drawCircle(centerX, centerY, loupeRadius, loupeBorderPaint);
+        float crosshair = loupeRadius / 4;
+        canvas.drawLine(centerX - crosshair, centerY, centerX + crosshair, centerY, loupeBorderPaint);
+        canvas.drawLine(centerX, centerY - crosshair, centerX, centerY + crosshair, loupeBorderPaint);
+    }
+
+    // The magnifier is shown in the top corner on the other side of the dragged corner
+    private void updateLoupeBounds() {
+        float size = 2 * loupeRadius;
+        boolean cornerOnLeft = currentCorners.getX(cornerToMove) < this.getWidth() / 2f;
+        float left = cornerOnLeft ? this.getWidth() - loupeMargin - size : loupeMargin;
+        loupeBounds.set(left, loupeMargin, left + size, loupeMargin + size);
     }
 
     @Override
@@ -114,6 +194,8 @@ public class PaperRectangle extends View {
                 touchYPos = event.getY();
                 cornerToMove = getCornerToMove(touchXPos, touchYPos);
                 Log.i("XXX", "Moved: "+ cornerToMove);
+                updateLoupeBounds();
+                if (edgeSnapMap != null) this.invalidate();
                 break;
             case MotionEvent.ACTION_MOVE:
                 touchXPos = event.getX() + xTouchToPointOffset;
@@ -123,53 +205,64 @@ public class PaperRectangle extends View {
                 touchXPos = Math.min(this.viewWidth, Math.max(touchXPos, 0));
                 touchYPos = Math.min(this.viewHeight, Math.max(touchYPos, 0));
 
+                // Snap to the nearest edge of the image if there is one close by
+                if (edgeSnapMap != null && edgeSnapMap.snap(touchXPos, touchYPos, snapDistance, snappedPoint)) {
+                    touchXPos = snappedPoint[0];
+                    touchYPos = snappedPoint[1];
+                }
+
                 // Assume LB is moved
-                if (!linesIntersects(currentCorners, cornerToMove, new Point(touchXPos, touchYPos))) {
-                    currentCorners.setCornerXY(cornerToMove, touchXPos, touchYPos);
+                if (!linesIntersects(currentCorners, cornerToMove, touchXPos, touchYPos)) {
+                    currentCorners = currentCorners.withCornerXY(cornerToMove, touchXPos, touchYPos);
+                    updateLoupeBounds();
                     movePoints();
                 }
 
                 currentRectIsAllowed = quadAnglesAreAllowed();
                 mListener.paperRectangleIsAllowed(currentRectIsAllowed);
+                mListener.paperRectangleChanged(currentCorners);
 
                 break;
             case MotionEvent.ACTION_UP:
+                if (edgeSnapMap != null) this.invalidate();
                 cornerToMove = null;
-                if (currentRectIsAllowed) this.currentCorners.resetCorrectPointPerCorner();
+                if (currentRectIsAllowed) this.currentCorners = this.currentCorners.withCorrectPointPerCorner();
+                mListener.paperRectangleChanged(currentCorners);
                 break;
         }
         return true;
     }
 
     private boolean quadAnglesAreAllowed() {
-        double ltA = angleOfPoint(currentCorners.lt, currentCorners.lb,  currentCorners.rt);
-        double rtA = angleOfPoint(currentCorners.rt, currentCorners.lt,  currentCorners.rb);
-        double lbA = angleOfPoint(currentCorners.lb, currentCorners.lt,  currentCorners.rb);
-        double rbA = angleOfPoint(currentCorners.rb, currentCorners.lb,  currentCorners.rt);
-
-        if (ltA <= 40 || ltA >= 180) return false;
-        if (rtA <= 40 || rtA >= 180) return false;
-        if (lbA <= 40 || lbA >= 180) return false;
-        if (rbA <= 40 || rbA >= 180) return false;
+        double ltX = currentCorners.getX(Corner.LEFT_TOP), ltY = currentCorners.getY(Corner.LEFT_TOP);
+        double rtX = currentCorners.getX(Corner.RIGHT_TOP), rtY = currentCorners.getY(Corner.RIGHT_TOP);
+        double lbX = currentCorners.getX(Corner.LEFT_BOTTOM), lbY = currentCorners.getY(Corner.LEFT_BOTTOM);
+        double rbX = currentCorners.getX(Corner.RIGHT_BOTTOM), rbY = currentCorners.getY(Corner.RIGHT_BOTTOM);
+
+        // A concave quad can not be warped to a rectangle
+        if (!Geometry.isConvex(currentCorners)) return false;
+
+        if (!angleIsAllowed(ltX, ltY, lbX, lbY, rtX, rtY)) return false;
+        if (!angleIsAllowed(rtX, rtY, ltX, ltY, rbX, rbY)) return false;
+        if (!angleIsAllowed(lbX, lbY, ltX, ltY, rbX, rbY)) return false;
+        if (!angleIsAllowed(rbX, rbY, lbX, lbY, rtX, rtY)) return false;
         return true;
     }
 
-    private double angleOfPoint(Point origin, Point p1, Point p2) {
-        double a = euclideanDistance(origin, p1);
-        double b = euclideanDistance(origin, p2);
-        double c = euclideanDistance(p1, p2);
-        double angle = Math.pow(c, 2) - (Math.pow(a, 2) + Math.pow(b, 2));
-        angle = angle / (-(2 * a * b));
-        angle = Math.acos(angle) * 180 / Math.PI;
-        return angle;
+    // The angle at the origin has to be above MIN_CORNER_ANGLE degrees and below 180 degrees
+    private boolean angleIsAllowed(double originX, double originY, double x1, double y1, double x2, double y2) {
+        return Geometry.angleIsAbove(originX, originY, x1, y1, x2, y2, MIN_CORNER_ANGLE_COSINE)
+                && Geometry.angleIsBelowStraight(originX, originY, x1, y1, x2, y2);
     }
 
+    // Rebuilds the contour path. The whole view is redrawn: with hardware acceleration a dirty
+    // rect is ignored anyway, and the overlay outside the quad is cheap to draw.
     private void movePoints() {
         contourPath.reset();
-        contourPath.moveTo((float)currentCorners.lt.x, (float)currentCorners.lt.y);
-        contourPath.lineTo((float)currentCorners.rt.x, (float)currentCorners.rt.y);
-        contourPath.lineTo((float)currentCorners.rb.x, (float)currentCorners.rb.y);
-        contourPath.lineTo((float)currentCorners.lb.x, (float)currentCorners.lb.y);
+        contourPath.moveTo((float)currentCorners.getX(Corner.LEFT_TOP), (float)currentCorners.getY(Corner.LEFT_TOP));
+        contourPath.lineTo((float)currentCorners.getX(Corner.RIGHT_TOP), (float)currentCorners.getY(Corner.RIGHT_TOP));
+        contourPath.lineTo((float)currentCorners.getX(Corner.RIGHT_BOTTOM), (float)currentCorners.getY(Corner.RIGHT_BOTTOM));
+        contourPath.lineTo((float)currentCorners.getX(Corner.LEFT_BOTTOM), (float)currentCorners.getY(Corner.LEFT_BOTTOM));
         contourPath.close();
         this.invalidate();
     }
@@ -179,20 +272,16 @@ public class PaperRectangle extends View {
         double minDistance = Double.MAX_VALUE;
         Corner minDistanceCorner = Corner.LEFT_BOTTOM;
 
-        Point currentCheckingPoint;
-        List<Corner> corners = Arrays.asList(Corner.LEFT_TOP, Corner.RIGHT_TOP, Corner.LEFT_BOTTOM, Corner.RIGHT_BOTTOM);
-        Point touchPoint = new Point(xPos, yPos);
-
-        double dist = 0.0;
-        for (Corner corner : corners) {
-            currentCheckingPoint = currentCorners.getCorner(corner);
-            dist = euclideanDistance(touchPoint, currentCheckingPoint);
+        for (Corner corner : CORNERS) {
+            double cornerX = currentCorners.getX(corner);
+            double cornerY = currentCorners.getY(corner);
+            double dist = Geometry.distanceSquared(xPos, yPos, cornerX, cornerY);
             if (dist < minDistance) {
                 minDistance = dist;
                 minDistanceCorner = corner;
 
-                xTouchToPointOffset = (float) currentCheckingPoint.x - xPos;
-                yTouchToPointOffset = (float) currentCheckingPoint.y - yPos;
+                xTouchToPointOffset = (float) cornerX - xPos;
+                yTouchToPointOffset = (float) cornerY - yPos;
             }
         }
 
@@ -200,52 +289,35 @@ public class PaperRectangle extends View {
     }
 
     // Checks if none of the lines of the rectangle intersect
-    private boolean linesIntersects(Quad corners, Corner movedCorner, Point movedCornerNewPosition) {
+    private boolean linesIntersects(Quad corners, Corner movedCorner, double newX, double newY) {
         boolean horizontal, vertical;
-
         boolean exceedsOppositeCorner = false;
-        Point oppositePointFromMoving;
+
+        double ltX = corners.getX(Corner.LEFT_TOP), ltY = corners.getY(Corner.LEFT_TOP);
+        double rtX = corners.getX(Corner.RIGHT_TOP), rtY = corners.getY(Corner.RIGHT_TOP);
+        double lbX = corners.getX(Corner.LEFT_BOTTOM), lbY = corners.getY(Corner.LEFT_BOTTOM);
+        double rbX = corners.getX(Corner.RIGHT_BOTTOM), rbY = corners.getY(Corner.RIGHT_BOTTOM);
 
         switch (movedCorner) {
             case LEFT_TOP:
-                horizontal = CheckLineIntersect.doIntersect(currentCorners.lb, movedCornerNewPosition,
-                        currentCorners.rb, currentCorners.rt);
-                vertical = CheckLineIntersect.doIntersect(currentCorners.lb, currentCorners.rb,
-                        movedCornerNewPosition, currentCorners.rt);
-
-                oppositePointFromMoving = currentCorners.rb;
-                exceedsOppositeCorner = (movedCornerNewPosition.x >= oppositePointFromMoving.x)
-                        && (movedCornerNewPosition.y >= oppositePointFromMoving.y);
+                horizontal = Geometry.segmentsIntersect(lbX, lbY, newX, newY, rbX, rbY, rtX, rtY);
+                vertical = Geometry.segmentsIntersect(lbX, lbY, rbX, rbY, newX, newY, rtX, rtY);
+                exceedsOppositeCorner = (newX >= rbX) && (newY >= rbY);
                 break;
             case RIGHT_TOP:
-                horizontal = CheckLineIntersect.doIntersect(currentCorners.lb, currentCorners.lt,
-                        currentCorners.rb, movedCornerNewPosition);
-                vertical = CheckLineIntersect.doIntersect(currentCorners.lb, currentCorners.rb,
-                        currentCorners.lt, movedCornerNewPosition);
-
-                oppositePointFromMoving = currentCorners.lb;
-                exceedsOppositeCorner = (movedCornerNewPosition.x <= oppositePointFromMoving.x)
-                        && (movedCornerNewPosition.y >= oppositePointFromMoving.y);
+                horizontal = Geometry.segmentsIntersect(lbX, lbY, ltX, ltY, rbX, rbY, newX, newY);
+                vertical = Geometry.segmentsIntersect(lbX, lbY, rbX, rbY, ltX, ltY, newX, newY);
+                exceedsOppositeCorner = (newX <= lbX) && (newY >= lbY);
                 break;
             case LEFT_BOTTOM:
-                horizontal = CheckLineIntersect.doIntersect(movedCornerNewPosition, currentCorners.lt,
-                        currentCorners.rb, currentCorners.rt);
-                vertical = CheckLineIntersect.doIntersect(movedCornerNewPosition, currentCorners.rb,
-                        currentCorners.lt, currentCorners.rt);
-
-                oppositePointFromMoving = currentCorners.rt;
-                exceedsOppositeCorner = (movedCornerNewPosition.x >= oppositePointFromMoving.x)
-                        && (movedCornerNewPosition.y <= oppositePointFromMoving.y);
+                horizontal = Geometry.segmentsIntersect(newX, newY, ltX, ltY, rbX, rbY, rtX, rtY);
+                vertical = Geometry.segmentsIntersect(newX, newY, rbX, rbY, ltX, ltY, rtX, rtY);
+                exceedsOppositeCorner = (newX >= rtX) && (newY <= rtY);
                 break;
             case RIGHT_BOTTOM:
-                horizontal = CheckLineIntersect.doIntersect(currentCorners.lb, currentCorners.lt,
-                        movedCornerNewPosition, currentCorners.rt);
-                vertical = CheckLineIntersect.doIntersect(currentCorners.lb, movedCornerNewPosition,
-                        currentCorners.lt, currentCorners.rt);
-
-                oppositePointFromMoving = currentCorners.lt;
-                exceedsOppositeCorner = (movedCornerNewPosition.x <= oppositePointFromMoving.x)
-                        && (movedCornerNewPosition.y <= oppositePointFromMoving.y);
+                horizontal = Geometry.segmentsIntersect(lbX, lbY, ltX, ltY, newX, newY, rtX, rtY);
+                vertical = Geometry.segmentsIntersect(lbX, lbY, newX, newY, ltX, ltY, rtX, rtY);
+                exceedsOppositeCorner = (newX <= ltX) && (newY <= ltY);
                 break;
             default:
                 horizontal = vertical = false;
@@ -253,8 +325,4 @@ public class PaperRectangle extends View {
 
         return horizontal || vertical || exceedsOppositeCorner;
     }
-
-    private double euclideanDistance(Point p1, Point p2) {
-        return Math.abs(Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2)));
-    }
 }
@@ -1,5 +1,10 @@
 package com.example.doc_scan.view;
 
+import com.example.doc_scan.model.Quad;
+
 public interface PaperRectangleCallback {
     public void paperRectangleIsAllowed(boolean allowed);
+
+    // Called when the user moved a corner, while dragging and when the drag ends
+    public void paperRectangleChanged(Quad corners);
 }
@@ -0,0 +1,178 @@
+package com.example.doc_scan;
+
+import com.example.doc_scan.geometry.Geometry;
+import com.example.doc_scan.model.Corner;
+import com.example.doc_scan.model.Quad;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Replays a recorded sequence of per-frame quads through a ContourFunnel, the same way
+// CameraView.onCameraFrame feeds it, and measures how the funnel behaves.
+// Only plain Java is used, so this runs headless on any JVM.
+class ContourFunnelReplay implements ContourFunnelListener {
+    // A recording of the quads detected per frame. A frame without a detection is null.
+    static class Recording {
+        final String name;
+        final List<double[]> frames;
+        // The real document corners, used to judge locks and auto-scans. May be null.
+        final double[] reference;
+
+        Recording(String name, List<double[]> frames, double[] reference) {
+            this.name = name;
+            this.frames = frames;
+            this.reference = reference;
+        }
+
+        // Reads a recording file. Every line is one of:
+        //   # comment
+        //   ref,x1,y1,x2,y2,x3,y3,x4,y4    the real document corners (optional, any order)
+        //   x1,y1,x2,y2,x3,y3,x4,y4        the quad detected in a frame (any order)
+        //   -                              a frame without a detected quad
+        static Recording read(String path) throws IOException {
+            List<double[]> frames = new ArrayList<>();
+            double[] reference = null;
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+
+                    if (line.equals("-")) {
+                        frames.add(null);
+                    } else if (line.startsWith("ref,")) {
+                        reference = parseCoordinates(line.substring(4), path);
+                    } else {
+                        frames.add(parseCoordinates(line, path));
+                    }
+                }
+            }
+
+            return new Recording(path, frames, reference);
+        }
+
+        private static double[] parseCoordinates(String line, String path) throws IOException {
+            String[] values = line.split(",");
+            if (values.length != 8) throw new IOException("Expected 8 coordinates in " + path + ": " + line);
+
+            double[] coordinates = new double[8];
+            for (int i = 0; i < 8; i++) {
+                coordinates[i] = Double.parseDouble(values[i].trim());
+            }
+            return coordinates;
+        }
+    }
+
+    // The outcome of replaying one recording
+    static class Result {
+        // Frame index at which the displayed quad first matched the reference (or was first
+        // shown when the recording has no reference). -1 if it never locked.
+        int framesToLock = -1;
+        // Mean corner movement in pixels between consecutive displayed quads
+        double meanJitter = 0;
+        int autoScans = 0;
+        // Auto-scans whose quad was further than the lock tolerance from the reference
+        int falseAutoScans = 0;
+    }
+
+    private static final Corner[] CORNERS = Corner.values();
+
+    // Same as CameraView.noRectangleCountThreshold
+    private static final int NO_RECTANGLE_COUNT_THRESHOLD = 3;
+
+    private final ContourFunnel contourFunnel;
+    private final double lockTolerance;
+
+    private Quad bestContourToBeDisplayed;
+    private FunnelResultAction contourFunnelAction;
+
+    ContourFunnelReplay(ContourFunnel contourFunnel, double lockTolerance) {
+        this.contourFunnel = contourFunnel;
+        this.lockTolerance = lockTolerance;
+        contourFunnel.registerContourFunnelListener(this);
+    }
+
+    @Override
+    public void currentContourIs(Quad contour, FunnelResultAction action) {
+        bestContourToBeDisplayed = contour;
+        contourFunnelAction = action;
+    }
+
+    // Feeds every frame of the recording to the funnel and collects the metrics. An auto-scan
+    // resets the funnel like CameraView.imageTaken does and the replay continues.
+    Result replay(Recording recording) {
+        Result result = new Result();
+        Quad reference = recording.reference != null ? new Quad(recording.reference) : null;
+
+        Quad previousDisplayed = null;
+        double jitterSum = 0;
+        int jitterCount = 0;
+        int noRectangleCount = 0;
+
+        contourFunnel.reset();
+        bestContourToBeDisplayed = null;
+        contourFunnelAction = null;
+
+        for (int frame = 0; frame < recording.frames.size(); frame++) {
+            double[] coordinates = recording.frames.get(frame);
+
+            if (coordinates != null) {
+                noRectangleCount = 0;
+                contourFunnel.add(new Quad(coordinates), bestContourToBeDisplayed);
+            } else {
+                noRectangleCount++;
+                if (noRectangleCount > NO_RECTANGLE_COUNT_THRESHOLD) {
+                    contourFunnel.currentAutoScanPassCount = 0;
+                    bestContourToBeDisplayed = null;
+                }
+            }
+
+            Quad displayed = bestContourToBeDisplayed;
+            if (displayed == null) {
+                previousDisplayed = null;
+                continue;
+            }
+
+            if (previousDisplayed != null) {
+                jitterSum += meanCornerDistance(previousDisplayed, displayed);
+                jitterCount++;
+            }
+            previousDisplayed = displayed;
+
+            boolean matchesReference = reference == null || maxCornerDistance(displayed, reference) <= lockTolerance;
+            if (result.framesToLock < 0 && matchesReference) result.framesToLock = frame;
+
+            if (contourFunnelAction == FunnelResultAction.SHOW_AND_AUTO_SCAN) {
+                result.autoScans++;
+                if (!matchesReference) result.falseAutoScans++;
+
+                contourFunnel.reset();
+                bestContourToBeDisplayed = null;
+                previousDisplayed = null;
+            }
+        }
+
+        result.meanJitter = jitterCount > 0 ? jitterSum / jitterCount : 0;
+        return result;
+    }
+
+    private static double meanCornerDistance(Quad q1, Quad q2) {
+        double sum = 0;
+        for (Corner corner : CORNERS) {
+            sum += Math.sqrt(Geometry.cornerDistanceSquared(q1, q2, corner));
+        }
+        return sum / 4;
+    }
+
+    private static double maxCornerDistance(Quad q1, Quad q2) {
+        double max = 0;
+        for (Corner corner : CORNERS) {
+            max = Math.max(max, Math.sqrt(Geometry.cornerDistanceSquared(q1, q2, corner)));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.doc_scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Offline tool to tune the ContourFunnel values. It replays recorded quad sequences (see
+// ContourFunnelReplay.Recording for the file format) for every combination of funnel values,
+// spread over all cores, and prints one CSV row per combination, best first.
+//
+// It lives in the test sources so it doesn't ship in the app. It has no Android dependencies
+// and can be run on a desktop JVM, e.g. from android/:
+//   javac -d /tmp/funnel \
+//       -sourcepath app/src/main/java:app/src/test/java:openCVLibrary320/src/main/java \
+//       app/src/test/java/com/example/doc_scan/ContourFunnelSweep.java
+//   java -cp /tmp/funnel com.example.doc_scan.ContourFunnelSweep recording1.txt recording2.txt
+public class ContourFunnelSweep {
+    // The values to sweep. The current ContourFunnel defaults are part of every range.
+    private static final int[] MIN_NUMBER_OF_CONTOURS = {2, 3, 4, 5};
+    private static final int[] MAX_NUMBER_OF_CONTOURS = {6, 8, 10, 12};
+    private static final double[] MATCHING_THRESHOLDS = {10.0, 15.0, 20.0, 30.0, 40.0};
+    private static final int[] AUTO_SCAN_THRESHOLDS = {10, 20, 30, 45};
+    private static final double[] AUTO_SCAN_MATCHING_THRESHOLDS = {3.0, 6.0, 9.0, 12.0};
+
+    // Maximum corner distance in pixels for a displayed quad to count as the real document
+    private static final double LOCK_TOLERANCE = 15.0;
+
+    // The funnel values of one sweep step and the metrics summed over all recordings
+    static class Candidate {
+        final int minNumberOfContours;
+        final int maxNumberOfContours;
+        final double matchingThreshold;
+        final int autoScanThreshold;
+        final double autoScanMatchingThreshold;
+
+        int lockedRecordings = 0;
+        double meanFramesToLock = 0;
+        double meanJitter = 0;
+        int autoScans = 0;
+        int falseAutoScans = 0;
+
+        Candidate(int minNumberOfContours, int maxNumberOfContours, double matchingThreshold,
+                  int autoScanThreshold, double autoScanMatchingThreshold) {
+            this.minNumberOfContours = minNumberOfContours;
+            this.maxNumberOfContours = maxNumberOfContours;
+            this.matchingThreshold = matchingThreshold;
+            this.autoScanThreshold = autoScanThreshold;
+            this.autoScanMatchingThreshold = autoScanMatchingThreshold;
+        }
+
+        // Replays all recordings with a fresh funnel using this candidate's values
+        Candidate evaluate(List<ContourFunnelReplay.Recording> recordings) {
+            ContourFunnel contourFunnel = new ContourFunnel(minNumberOfContours, maxNumberOfContours,
+                    matchingThreshold, autoScanThreshold, autoScanMatchingThreshold);
+            ContourFunnelReplay replay = new ContourFunnelReplay(contourFunnel, LOCK_TOLERANCE);
+
+            double framesToLockSum = 0;
+            double jitterSum = 0;
+            for (ContourFunnelReplay.Recording recording : recordings) {
+                ContourFunnelReplay.Result result = replay.replay(recording);
+                if (result.framesToLock >= 0) {
+                    lockedRecordings++;
+                    framesToLockSum += result.framesToLock;
+                }
+                jitterSum += result.meanJitter;
+                autoScans += result.autoScans;
+                falseAutoScans += result.falseAutoScans;
+            }
+
+            meanFramesToLock = lockedRecordings > 0 ? framesToLockSum / lockedRecordings : -1;
+            meanJitter = jitterSum / recordings.size();
+            return this;
+        }
+
+        String toCsv() {
+            return String.format(Locale.US, "%d,%d,%.1f,%d,%.1f,%d,%.2f,%.3f,%d,%d",
+                    minNumberOfContours, maxNumberOfContours, matchingThreshold, autoScanThreshold,
+                    autoScanMatchingThreshold, lockedRecordings, meanFramesToLock, meanJitter,
+                    autoScans, falseAutoScans);
+        }
+    }
+
+    // Fewest false auto-scans first, then most locks, quickest lock and least jitter
+    private static final Comparator<Candidate> BEST_FIRST = (c1, c2) -> {
+        if (c1.falseAutoScans != c2.falseAutoScans) return Integer.compare(c1.falseAutoScans, c2.falseAutoScans);
+        if (c1.lockedRecordings != c2.lockedRecordings) return Integer.compare(c2.lockedRecordings, c1.lockedRecordings);
+        if (c1.meanFramesToLock != c2.meanFramesToLock) return Double.compare(c1.meanFramesToLock, c2.meanFramesToLock);
+        return Double.compare(c1.meanJitter, c2.meanJitter);
+    };
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length == 0) {
+            System.err.println("Usage: ContourFunnelSweep <recording> [<recording> ...]");
+            System.exit(1);
+        }
+
+        List<ContourFunnelReplay.Recording> recordings = new ArrayList<>();
+        for (String path : args) {
+            recordings.add(ContourFunnelReplay.Recording.read(path));
+        }
+
+        List<Candidate> results = sweep(recordings, Runtime.getRuntime().availableProcessors());
+
+        System.out.println("minNumberOfContours,maxNumberOfContours,matchingThreshold,autoScanThreshold,"
+                + "autoScanMatchingThreshold,lockedRecordings,meanFramesToLock,meanJitter,autoScans,falseAutoScans");
+        for (Candidate candidate : results) {
+            System.out.println(candidate.toCsv());
+        }
+    }
+
+    // Evaluates every valid combination of funnel values on a fixed thread pool and returns
+    // the candidates sorted best first.
+    static List<Candidate> sweep(List<ContourFunnelReplay.Recording> recordings, int threads)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Candidate>> futures = new ArrayList<>();
+
+        try {
+            for (int minContours : MIN_NUMBER_OF_CONTOURS) {
+                for (int maxContours : MAX_NUMBER_OF_CONTOURS) {
+                    // minNumberOfContours should always be below maxNumberOfContours
+                    if (minContours >= maxContours) continue;
+
+                    for (double matchingThreshold : MATCHING_THRESHOLDS) {
+                        for (int autoScanThreshold : AUTO_SCAN_THRESHOLDS) {
+                            for (double autoScanMatchingThreshold : AUTO_SCAN_MATCHING_THRESHOLDS) {
+                                Candidate candidate = new Candidate(minContours, maxContours,
+                                        matchingThreshold, autoScanThreshold, autoScanMatchingThreshold);
+                                futures.add(executor.submit(() -> candidate.evaluate(recordings)));
+                            }
+                        }
+                    }
+                }
+            }
+
+            List<Candidate> results = new ArrayList<>(futures.size());
+            for (Future<Candidate> future : futures) {
+                results.add(future.get());
+            }
+            Collections.sort(results, BEST_FIRST);
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
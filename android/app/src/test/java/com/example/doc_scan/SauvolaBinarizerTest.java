@@ -0,0 +1,54 @@
+package com.example.doc_scan;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// The tiled binarization has to give exactly the same output as the one integral image of the
+// whole image in binarizeSerial(), for tiles cut off at the image border and for windows
+// reaching across several tiles.
+public class SauvolaBinarizerTest {
+    // Sizes below, at and just above a multiple of the 256 pixel tiles
+    private static final int[][] SIZES = {
+            { 1, 1 }, { 31, 7 }, { 256, 256 }, { 257, 255 }, { 300, 513 }, { 600, 391 }
+    };
+    // Radii up to just above the tile size
+    private static final int[] RADII = { 1, 7, 128, 255, 256, 257, 400 };
+
+    @Test
+    public void tiledMatchesSerialOnRandomImages() {
+        Random random = new Random(42);
+        for (int[] size : SIZES) {
+            byte[] gray = new byte[size[0] * size[1]];
+            random.nextBytes(gray);
+            for (int radius : RADII) assertTiledMatchesSerial(gray, size[0], size[1], radius);
+        }
+    }
+
+    // Smooth gradients with text-like dark specks, closer to a receipt than noise
+    @Test
+    public void tiledMatchesSerialOnReceiptLikeImage() {
+        int width = 700;
+        int height = 1100;
+        Random random = new Random(7);
+        byte[] gray = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int light = 120 + 100 * x / width + 30 * y / height;
+                gray[y * width + x] = (byte) (random.nextInt(40) == 0 ? light / 4 : light);
+            }
+        }
+        assertTiledMatchesSerial(gray, width, height, SauvolaBinarizer.radiusFor(width, height));
+    }
+
+    private static void assertTiledMatchesSerial(byte[] gray, int width, int height, int radius) {
+        byte[] serial = SauvolaBinarizer.binarizeSerial(gray, width, height, radius, SauvolaBinarizer.DEFAULT_K);
+        for (int threads : new int[] { 1, 4 }) {
+            byte[] tiled = SauvolaBinarizer.binarize(gray, width, height, radius, SauvolaBinarizer.DEFAULT_K, threads);
+            assertArrayEquals(width + "x" + height + ", radius " + radius + ", " + threads + " threads",
+                    serial, tiled);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.doc_scan.geometry;
+
+import com.example.doc_scan.model.Corner;
+import com.example.doc_scan.model.Quad;
+
+import java.util.Locale;
+import java.util.Random;
+
+// Micro benchmark for the Geometry kernel, next to the Point/acos based code it replaced.
+// It lives in the test sources so it doesn't ship in the app. It has no Android dependencies
+// and runs on a desktop JVM, e.g. from android/:
+//   javac -d /tmp/geometry \
+//       -sourcepath app/src/main/java:app/src/test/java:openCVLibrary320/src/main/java \
+//       app/src/test/java/com/example/doc_scan/geometry/GeometryBenchmark.java
+//   java -cp /tmp/geometry com.example.doc_scan.geometry.GeometryBenchmark
+public class GeometryBenchmark {
+    private static final int QUADS = 1024;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final int OPERATIONS_PER_ROUND = 2_000_000;
+
+    private static final double MIN_ANGLE_COSINE = Geometry.cosineOf(40);
+
+    interface Operation {
+        // Runs the operation on quad 'i' and returns a value that depends on the result, so
+        // the JIT can not remove the work.
+        double run(int i);
+    }
+
+    private static Quad[] quads;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        quads = new Quad[QUADS];
+        for (int i = 0; i < QUADS; i++) {
+            double[] points = new double[8];
+            for (int j = 0; j < 8; j++) points[j] = random.nextDouble() * 1000;
+            quads[i] = new Quad(points);
+        }
+
+        measure("distanceSquared", i -> {
+            Quad q = quads[i];
+            return Geometry.distanceSquared(q.getX(Corner.LEFT_TOP), q.getY(Corner.LEFT_TOP),
+                    q.getX(Corner.RIGHT_BOTTOM), q.getY(Corner.RIGHT_BOTTOM));
+        });
+        measure("distance (Math.pow reference)", i -> {
+            Quad q = quads[i];
+            return Math.sqrt(Math.pow(q.getX(Corner.LEFT_TOP) - q.getX(Corner.RIGHT_BOTTOM), 2)
+                    + Math.pow(q.getY(Corner.LEFT_TOP) - q.getY(Corner.RIGHT_BOTTOM), 2));
+        });
+        measure("angleIsAbove", i -> {
+            Quad q = quads[i];
+            return Geometry.angleIsAbove(q.getX(Corner.LEFT_TOP), q.getY(Corner.LEFT_TOP),
+                    q.getX(Corner.LEFT_BOTTOM), q.getY(Corner.LEFT_BOTTOM),
+                    q.getX(Corner.RIGHT_TOP), q.getY(Corner.RIGHT_TOP), MIN_ANGLE_COSINE) ? 1 : 0;
+        });
+        measure("angle (acos reference)", i -> {
+            Quad q = quads[i];
+            return acosAngle(q.getX(Corner.LEFT_TOP), q.getY(Corner.LEFT_TOP),
+                    q.getX(Corner.LEFT_BOTTOM), q.getY(Corner.LEFT_BOTTOM),
+                    q.getX(Corner.RIGHT_TOP), q.getY(Corner.RIGHT_TOP)) > 40 ? 1 : 0;
+        });
+        measure("isConvex", i -> Geometry.isConvex(quads[i]) ? 1 : 0);
+        measure("segmentsIntersect", i -> {
+            Quad q = quads[i];
+            return Geometry.segmentsIntersect(q.getX(Corner.LEFT_TOP), q.getY(Corner.LEFT_TOP),
+                    q.getX(Corner.RIGHT_BOTTOM), q.getY(Corner.RIGHT_BOTTOM),
+                    q.getX(Corner.RIGHT_TOP), q.getY(Corner.RIGHT_TOP),
+                    q.getX(Corner.LEFT_BOTTOM), q.getY(Corner.LEFT_BOTTOM)) ? 1 : 0;
+        });
+    }
+
+    private static void measure(String name, Operation operation) {
+        double sink = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            sink += runRound(operation);
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            sink += runRound(operation);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double nanosPerOperation = (double) elapsed / ((long) MEASURED_ROUNDS * OPERATIONS_PER_ROUND);
+        System.out.println(String.format(Locale.US, "%-32s %8.2f ns/op  (%s)", name, nanosPerOperation, sink));
+    }
+
+    private static double runRound(Operation operation) {
+        double sink = 0;
+        for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+            sink += operation.run(i & (QUADS - 1));
+        }
+        return sink;
+    }
+
+    // The law of cosines version PaperRectangle used before
+    private static double acosAngle(double ox, double oy, double x1, double y1, double x2, double y2) {
+        double a = Math.sqrt(Math.pow(ox - x1, 2) + Math.pow(oy - y1, 2));
+        double b = Math.sqrt(Math.pow(ox - x2, 2) + Math.pow(oy - y2, 2));
+        double c = Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+        double angle = Math.pow(c, 2) - (Math.pow(a, 2) + Math.pow(b, 2));
+        angle = angle / (-(2 * a * b));
+        return Math.acos(angle) * 180 / Math.PI;
+    }
+}
@@ -3,6 +3,7 @@ import 'dart:typed_data';
 
 import 'package:doc_scan/algorithms/ReceiptDataExtractor.dart';
 import 'package:doc_scan/models/ScanResult.dart';
+import 'package:doc_scan/models/TextObservation.dart' show VisionResult;
 import 'package:doc_scan/models/ReceiptObjects.dart';
 import 'package:flutter/material.dart';
 
@@ -10,6 +11,7 @@ import 'package:flutter/services.dart';
 
 import 'dart:async';
 import 'dart:convert';
+import 'dart:io';
 import 'package:esys_flutter_share/esys_flutter_share.dart';
 import 'package:fluttertoast/fluttertoast.dart';
 import 'dart:ui';
@@ -17,7 +19,6 @@ import 'package:intl/intl.dart';
 import 'package:url_launcher/url_launcher.dart';
 
 // import 'package:flutter_mailer/flutter_mailer.dart';
-// import 'dart:io';
 // import 'package:path_provider/path_provider.dart';
 // import 'package:image_gallery_saver/image_gallery_saver.dart';
 // import 'package:permission_handler/permission_handler.dart';
@@ -72,11 +73,13 @@ class _MyHomePageState extends State<MyHomePage> {
       var collection = json.decode(jsonResults);
       ScanResult _results = ScanResult.fromJson(collection);
   
+      // The files are read before the next scan overwrites them
+      VisionResult visionResult = VisionResult.fromBytes(await File(_results.visionResultPath).readAsBytes());
       Uint8List decodedOriginal, decodedCropped;
-      if (_results.originalImageBase64 != null) decodedOriginal = base64.decode(_results.originalImageBase64);
-      if (_results.croppedImageBase64 != null) decodedCropped = base64.decode(_results.croppedImageBase64);
+      if (_results.originalImagePath != null) decodedOriginal = await File(_results.originalImagePath).readAsBytes();
+      if (_results.croppedImagePath != null) decodedCropped = await File(_results.croppedImagePath).readAsBytes();
 
-      List results = ReceiptDataExtractor().getReceiptData(_results.visionResult);
+      List results = ReceiptDataExtractor().getReceiptData(visionResult);
       ReceiptContentLine totalRow = results[0];
       List<ReceiptProduct> products = results[1];
       ReceiptDetails details = results[2];
@@ -87,7 +90,7 @@ class _MyHomePageState extends State<MyHomePage> {
         this.products = products;
         this.totalRow = totalRow;
         this.details = details;
-        this.jsonVisionResults = json.encode(_results.visionResult);
+        this.jsonVisionResults = json.encode(visionResult);
       });
 
     } on PlatformException catch (e) {
@@ -1,17 +1,17 @@
-import 'package:doc_scan/models/TextObservation.dart';
-
 class ScanResult {
-  final VisionResult visionResult;
-  final String originalImageBase64;
-  final String croppedImageBase64;
+  // The OCR results, decoded by VisionResult.fromBytes
+  final String visionResultPath;
+  // Image files (JPEG or PNG) in the app's cache, overwritten by the next scan
+  final String originalImagePath;
+  final String croppedImagePath;
 
-  ScanResult(this.visionResult, this.originalImageBase64, this.croppedImageBase64);
+  ScanResult(this.visionResultPath, this.originalImagePath, this.croppedImagePath);
 
 factory ScanResult.fromJson(Map<String, dynamic> json){
     return ScanResult(
-      VisionResult.fromJson(json['visionResult']),
-      json['originalImageBase64'],
-      json['croppedImageBase64']
+      json['visionResultPath'],
+      json['originalImagePath'],
+      json['croppedImagePath']
     );
   }
 }
\ No newline at end of file
@@ -1,4 +1,5 @@
 import 'dart:convert';
+import 'dart:typed_data';
 
 import 'package:equatable/equatable.dart';
 
@@ -20,6 +21,48 @@ class VisionResult extends Equatable {
     );
   }
 
+  // Decodes the binary form written by VisionResult.encode() on Android: a string table and
+  // one column per field, little endian, see VisionResult.java for the layout
+  factory VisionResult.fromBytes(Uint8List bytes) {
+    const magic = 0x31525356;
+    final data = ByteData.view(bytes.buffer, bytes.offsetInBytes, bytes.lengthInBytes);
+    int offset = 0;
+    int readInt() {
+      final value = data.getInt32(offset, Endian.little);
+      offset += 4;
+      return value;
+    }
+    double readFloat() {
+      final value = data.getFloat32(offset, Endian.little);
+      offset += 4;
+      return value;
+    }
+
+    if (readInt() != magic) throw FormatException('Not an encoded VisionResult');
+    final sourceImageSize = Size(readFloat(), readFloat());
+
+    final strings = List<String>(readInt());
+    for (int i = 0; i < strings.length; i++) {
+      final length = readInt();
+      strings[i] = utf8.decode(Uint8List.view(bytes.buffer, bytes.offsetInBytes + offset, length));
+      offset += length;
+    }
+    offset = (offset + 3) & ~3;
+
+    final count = readInt();
+    final textStart = offset;
+    final columnStart = textStart + count * 4;
+    double column(int field, int i) => data.getFloat32(columnStart + (field * count + i) * 4, Endian.little);
+
+    final observations = List<TextObservation>(count);
+    for (int i = 0; i < count; i++) {
+      final text = strings[data.getInt32(textStart + i * 4, Endian.little)];
+      final rect = Rect(column(0, i), column(1, i), Size(column(2, i), column(3, i)));
+      observations[i] = TextObservation(text, column(4, i), rect);
+    }
+    return VisionResult(sourceImageSize, observations);
+  }
+
   Map<String, dynamic> toJson() => {
     'sourceImageSize': sourceImageSize.toString(),
     'textObservations': jsonEncode(textObservations),
@@ -1,7 +1,6 @@
 import 'package:test/test.dart';
 import 'package:doc_scan/algorithms/ReceiptDataExtractor.dart';
 import 'package:doc_scan/models/TextObservation.dart';
-import 'package:doc_scan/models/ScanResult.dart';
 import 'dart:convert';
 
 
@@ -9,23 +8,21 @@ void main() {
 
   group('test_get_receipt_data', () {
     test('test_no_data', () {
-      final String jsonResults ='{"visionResult":{"textObservations":[],"sourceImageSize":{"width":996,"height":3290}},"croppedImageBase64":"","originalImageBase64":""}';
-      var collection = json.decode(jsonResults);
-      ScanResult _results = ScanResult.fromJson(collection);
+      final String jsonResults ='{"textObservations":[],"sourceImageSize":{"width":996,"height":3290}}';
+      VisionResult visionResult = VisionResult.fromJson(json.decode(jsonResults));
 
       final receiptDataExtractor = ReceiptDataExtractor();
-      List<Object> results = receiptDataExtractor.getReceiptData(_results.visionResult);
+      List<Object> results = receiptDataExtractor.getReceiptData(visionResult);
 
       expect(results, [null, null, null]);
     });
 
     // test('test_one_row_no_total', () {
-    //   final String jsonResults ='{"visionResult":{"textObservations":[{"text":"11,29","confidence":-1,"normalizedRect":{"xPos":0.7609970674486803,"yPos":0.12608695652173912,"size":{"width":0.06891495601173026,"height":0.060869565217391314}}},{"text":"BEFCHONING CREME","confidence":-1,"normalizedRect":{"xPos":0.20674486803519063,"yPos":0.12608695652173912,"size":{"width":0.23753665689149558,"height":0.06521739130434781}}}],"sourceImageSize":{"width":996,"height":3290}},"croppedImageBase64":"","originalImageBase64":""}';
-    //   var collection = json.decode(jsonResults);
-    //   ScanResult _results = ScanResult.fromJson(collection);
+    //   final String jsonResults ='{"textObservations":[{"text":"11,29","confidence":-1,"normalizedRect":{"xPos":0.7609970674486803,"yPos":0.12608695652173912,"size":{"width":0.06891495601173026,"height":0.060869565217391314}}},{"text":"BEFCHONING CREME","confidence":-1,"normalizedRect":{"xPos":0.20674486803519063,"yPos":0.12608695652173912,"size":{"width":0.23753665689149558,"height":0.06521739130434781}}}],"sourceImageSize":{"width":996,"height":3290}}';
+    //   VisionResult visionResult = VisionResult.fromJson(json.decode(jsonResults));
 
     //   final receiptDataExtractor = ReceiptDataExtractor();
-    //   List<Object> results = receiptDataExtractor.getReceiptData(_results.visionResult);
+    //   List<Object> results = receiptDataExtractor.getReceiptData(visionResult);
 
     //   expect(results[0], null);
 
@@ -0,0 +1,70 @@
+import 'dart:typed_data';
+
+import 'package:test/test.dart';
+import 'package:doc_scan/models/TextObservation.dart';
+
+
+// Written by VisionResult.encode() on Android for a 996x3290 image with these lines, in order:
+//   "TOTAL"           -1    0.125, 0.5    0.25 x 0.0078125
+//   "12,50 €"         -1    0.75, 0.5     0.125 x 0.0078125
+//   "Größe Brötchen"  0.5   0.0625, 0.25  0.4375 x 0.0078125
+//   "TOTAL"           -1    0.125, 0.75   0.25 x 0.0078125
+//   "12,50 €"         0.75  0.75, 0.75    0.125 x 0.0078125
+// The repeated texts are stored once, the string table ends with one byte of padding.
+final encodedLines = Uint8List.fromList([
+  86, 83, 82, 49, 0, 0, 121, 68, 0, 160, 77, 69, 3, 0, 0, 0,
+  5, 0, 0, 0, 84, 79, 84, 65, 76, 9, 0, 0, 0, 49, 50, 44,
+  53, 48, 32, 226, 130, 172, 17, 0, 0, 0, 71, 114, 195, 182, 195, 159,
+  101, 32, 66, 114, 195, 182, 116, 99, 104, 101, 110, 0, 5, 0, 0, 0,
+  0, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0,
+  1, 0, 0, 0, 0, 0, 0, 62, 0, 0, 64, 63, 0, 0, 128, 61,
+  0, 0, 0, 62, 0, 0, 64, 63, 0, 0, 0, 63, 0, 0, 0, 63,
+  0, 0, 128, 62, 0, 0, 64, 63, 0, 0, 64, 63, 0, 0, 128, 62,
+  0, 0, 0, 62, 0, 0, 224, 62, 0, 0, 128, 62, 0, 0, 0, 62,
+  0, 0, 0, 60, 0, 0, 0, 60, 0, 0, 0, 60, 0, 0, 0, 60,
+  0, 0, 0, 60, 0, 0, 128, 191, 0, 0, 128, 191, 0, 0, 0, 63,
+  0, 0, 128, 191, 0, 0, 64, 63,
+]);
+
+// Written by VisionResult.encode() for a 996x3290 image without lines
+final encodedEmpty = Uint8List.fromList([
+  86, 83, 82, 49, 0, 0, 121, 68, 0, 160, 77, 69, 0, 0, 0, 0,
+  0, 0, 0, 0,
+]);
+
+void main() {
+
+  group('test_vision_result_from_bytes', () {
+    test('test_lines', () {
+      final lineHeight = 0.0078125;
+      final expected = VisionResult(Size(996, 3290), [
+        TextObservation('TOTAL', -1, Rect(0.125, 0.5, Size(0.25, lineHeight))),
+        TextObservation('12,50 €', -1, Rect(0.75, 0.5, Size(0.125, lineHeight))),
+        TextObservation('Größe Brötchen', 0.5, Rect(0.0625, 0.25, Size(0.4375, lineHeight))),
+        TextObservation('TOTAL', -1, Rect(0.125, 0.75, Size(0.25, lineHeight))),
+        TextObservation('12,50 €', 0.75, Rect(0.75, 0.75, Size(0.125, lineHeight))),
+      ]);
+
+      expect(VisionResult.fromBytes(encodedLines), expected);
+    });
+
+    test('test_no_lines', () {
+      final result = VisionResult.fromBytes(encodedEmpty);
+
+      expect(result, VisionResult(Size(996, 3290), []));
+      expect(result.textObservations, isEmpty);
+    });
+
+    test('test_offset_view', () {
+      // The platform channel may hand over a view into a larger buffer
+      final buffer = Uint8List(encodedLines.length + 8)..setRange(8, encodedLines.length + 8, encodedLines);
+      final view = Uint8List.view(buffer.buffer, 8, encodedLines.length);
+
+      expect(VisionResult.fromBytes(view), VisionResult.fromBytes(encodedLines));
+    });
+
+    test('test_not_encoded', () {
+      expect(() => VisionResult.fromBytes(Uint8List.fromList([1, 2, 3, 4])), throwsFormatException);
+    });
+  });
+}